@@ -0,0 +1,525 @@
+package com.hindsightsoftware.upkeep;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Local stand-in for the CloudFormation, EC2, ELB and RDS query APIs that the plugin calls, at a single endpoint.
+ * The stack is created in a fixed time, its instances pass their status checks some time after that, and an instance
+ * is in service at the load balancer while its node is ready. Every call takes the configured latency and is throttled
+ * at the configured rate, which the AWS SDK retries with its usual back-off.
+ */
+public class AwsStub implements AutoCloseable {
+    // The instances are c5.xlarge
+    public static final int INSTANCE_VCPUS = 4;
+
+    private static final String ACCOUNT = "123456789012";
+    private static final String REGION = "us-east-2";
+    private static final String LOAD_BALANCER = "jira-lb-simulated";
+    private static final String DATABASE = "jira-db-simulated";
+    private static final String DATABASE_ADDRESS = DATABASE + ".simulated.rds.amazonaws.com";
+
+    private static final Map<String, String> SERVICES = new LinkedHashMap<String, String>();
+    static {
+        for(String action : new String[]{ "CreateStack", "DescribeStacks", "DescribeStackEvents", "DescribeStackResources" }){
+            SERVICES.put(action, "CloudFormation");
+        }
+        for(String action : new String[]{ "DescribeInstances", "DescribeInstanceStatus" }){
+            SERVICES.put(action, "EC2");
+        }
+        for(String action : new String[]{ "DescribeLoadBalancers", "DescribeInstanceHealth" }){
+            SERVICES.put(action, "ELB");
+        }
+        SERVICES.put("DescribeDBInstances", "RDS");
+    }
+
+    private static final Map<String, String> NAMESPACES = new LinkedHashMap<String, String>();
+    static {
+        NAMESPACES.put("CloudFormation", "http://cloudformation.amazonaws.com/doc/2010-05-15/");
+        NAMESPACES.put("EC2", "http://ec2.amazonaws.com/doc/2016-11-15/");
+        NAMESPACES.put("ELB", "http://elasticloadbalancing.amazonaws.com/doc/2012-06-01/");
+        NAMESPACES.put("RDS", "http://rds.amazonaws.com/doc/2014-10-31/");
+    }
+
+    /**
+     * An instance behind the load balancer.
+     */
+    public static class Instance {
+        private final String instanceId;
+        private final String privateIp;
+        private final BooleanSupplier healthy;
+
+        /**
+         * @param healthy whether the instance passes the load balancer health check
+         */
+        public Instance(String instanceId, String privateIp, BooleanSupplier healthy){
+            this.instanceId = instanceId;
+            this.privateIp = privateIp;
+            this.healthy = healthy;
+        }
+    }
+
+    private static class Event {
+        private final long time;
+        private final String stackId;
+        private final String stackName;
+        private final String logicalId;
+        private final String physicalId;
+        private final String type;
+        private final String status;
+
+        private Event(long time, String stackId, String stackName, String logicalId, String physicalId, String type, String status){
+            this.time = time;
+            this.stackId = stackId;
+            this.stackName = stackName;
+            this.logicalId = logicalId;
+            this.physicalId = physicalId;
+            this.type = type;
+            this.status = status;
+        }
+    }
+
+    // Thrown to answer with an error response
+    private static class ServiceException extends Exception {
+        private final int status;
+        private final String code;
+
+        private ServiceException(int status, String code, String message){
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    private final List<Instance> instances;
+    private final String bastionIp;
+    private final long stackCreateMillis;
+    private final long instancesOkMillis;
+    private final long latencyMillis;
+    private final double throttleRate;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, AtomicInteger> calls = new TreeMap<String, AtomicInteger>();
+    private final AtomicInteger throttled = new AtomicInteger();
+
+    private String stackName;
+    private String stackId;
+    private String nestedName;
+    private String nestedId;
+    private long createdAt;
+
+    /**
+     * @param stackCreateMillis time it takes to create the stack
+     * @param instancesOkMillis time it takes the instances to pass their status checks once the stack has been created
+     * @param latencyMillis time every call takes
+     * @param throttleRate share of the calls that are throttled, from 0 to 1
+     */
+    public AwsStub(List<Instance> instances, String bastionIp, long stackCreateMillis, long instancesOkMillis,
+                   long latencyMillis, double throttleRate) throws IOException {
+        this.instances = instances;
+        this.bastionIp = bastionIp;
+        this.stackCreateMillis = stackCreateMillis;
+        this.instancesOkMillis = instancesOkMillis;
+        this.latencyMillis = latencyMillis;
+        this.throttleRate = throttleRate;
+
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "aws-stub");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String getEndpoint(){
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Number of calls of every service and action, including throttled calls.
+     */
+    public synchronized Map<String, Integer> getCalls(){
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for(Map.Entry<String, AtomicInteger> entry : calls.entrySet()){
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    public int getThrottled(){
+        return throttled.get();
+    }
+
+    @Override
+    public void close(){
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        Map<String, String> params = readForm(exchange.getRequestBody());
+        String action = params.get("Action");
+        String service = SERVICES.get(action);
+        if(service == null){
+            respond(exchange, "CloudFormation", new ServiceException(400, "InvalidAction", "Unknown action: " + action));
+            return;
+        }
+
+        synchronized (this) {
+            calls.computeIfAbsent(service + " " + action, key -> new AtomicInteger()).incrementAndGet();
+        }
+
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if(ThreadLocalRandom.current().nextDouble() < throttleRate){
+            throttled.incrementAndGet();
+            respond(exchange, service, service.equals("EC2")
+                    ? new ServiceException(503, "RequestLimitExceeded", "Request limit exceeded.")
+                    : new ServiceException(400, "Throttling", "Rate exceeded"));
+            return;
+        }
+
+        try {
+            String result;
+            synchronized (this) {
+                result = dispatch(action, params);
+            }
+            respond(exchange, 200, result);
+        } catch (ServiceException e) {
+            respond(exchange, service, e);
+        }
+    }
+
+    private String dispatch(String action, Map<String, String> params) throws ServiceException {
+        switch(action){
+            case "CreateStack": return createStack(params);
+            case "DescribeStacks": return describeStacks(params);
+            case "DescribeStackEvents": return describeStackEvents(params);
+            case "DescribeStackResources": return describeStackResources(params);
+            case "DescribeInstances": return describeInstances(params);
+            case "DescribeInstanceStatus": return describeInstanceStatus(params);
+            case "DescribeLoadBalancers": return describeLoadBalancers(params);
+            case "DescribeInstanceHealth": return describeInstanceHealth(params);
+            default: return describeDBInstances();
+        }
+    }
+
+    private String createStack(Map<String, String> params) throws ServiceException {
+        if(stackName != null){
+            throw new ServiceException(400, "AlreadyExistsException", "Stack [" + stackName + "] already exists");
+        }
+        stackName = params.get("StackName");
+        stackId = "arn:aws:cloudformation:" + REGION + ":" + ACCOUNT + ":stack/" + stackName + "/" + UUID.randomUUID();
+        nestedName = stackName + "-JiraDCStack-SIMULATED";
+        nestedId = "arn:aws:cloudformation:" + REGION + ":" + ACCOUNT + ":stack/" + nestedName + "/" + UUID.randomUUID();
+        createdAt = System.currentTimeMillis();
+        return response("CloudFormation", "CreateStack", element("StackId", stackId));
+    }
+
+    private String describeStacks(Map<String, String> params) throws ServiceException {
+        String name = params.get("StackName");
+        StringBuilder stacks = new StringBuilder();
+        if(name == null){
+            if(stackName != null){
+                stacks.append(member(stack(false)));
+                stacks.append(member(stack(true)));
+            }
+        } else {
+            stacks.append(member(stack(isNested(name))));
+        }
+        return response("CloudFormation", "DescribeStacks", element("Stacks", stacks));
+    }
+
+    private String stack(boolean nested){
+        String status = getStackStatus(nested);
+        StringBuilder stack = new StringBuilder()
+                .append(element("StackId", nested ? nestedId : stackId))
+                .append(element("StackName", nested ? nestedName : stackName))
+                .append(element("CreationTime", timestamp(createdAt)))
+                .append(element("StackStatus", status));
+
+        if(!nested && status.equals("CREATE_COMPLETE")){
+            String baseUrl = "http://" + LOAD_BALANCER + "." + REGION + ".elb.amazonaws.com";
+            stack.append(element("Outputs", new StringBuilder()
+                    .append(member(output("BastionIP", bastionIp)))
+                    .append(member(output("LoadBalancerURL", baseUrl)))
+                    .append(member(output("JIRAURL", baseUrl)))
+                    .append(member(output("DBEndpointAddress", DATABASE_ADDRESS)))));
+        }
+        return stack.toString();
+    }
+
+    private String describeStackEvents(Map<String, String> params) throws ServiceException {
+        boolean nested = isNested(params.get("StackName"));
+        long now = System.currentTimeMillis();
+
+        // Newest first
+        List<Event> events = getEvents(nested);
+        StringBuilder members = new StringBuilder();
+        for(int i = events.size() - 1; i >= 0; i--){
+            Event event = events.get(i);
+            if(event.time > now)continue;
+            members.append(member(new StringBuilder()
+                    .append(element("StackId", event.stackId))
+                    .append(element("EventId", event.logicalId + "-" + event.status + "-" + event.time))
+                    .append(element("StackName", event.stackName))
+                    .append(element("LogicalResourceId", event.logicalId))
+                    .append(element("PhysicalResourceId", event.physicalId))
+                    .append(element("ResourceType", event.type))
+                    .append(element("Timestamp", timestamp(event.time)))
+                    .append(element("ResourceStatus", event.status))));
+        }
+        return response("CloudFormation", "DescribeStackEvents", element("StackEvents", members));
+    }
+
+    private String describeStackResources(Map<String, String> params) throws ServiceException {
+        boolean nested = isNested(params.get("StackName"));
+        StringBuilder members = new StringBuilder();
+        if(nested){
+            members.append(member(resource(nestedName, nestedId, "LoadBalancer", LOAD_BALANCER, "AWS::ElasticLoadBalancing::LoadBalancer")));
+            members.append(member(resource(nestedName, nestedId, "ClusterNodeGroup", nestedName + "-ClusterNodeGroup", "AWS::AutoScaling::AutoScalingGroup")));
+            members.append(member(resource(nestedName, nestedId, "DB", DATABASE, "AWS::RDS::DBInstance")));
+        } else {
+            members.append(member(resource(stackName, stackId, "JiraDCStack", nestedId, "AWS::CloudFormation::Stack")));
+        }
+        return response("CloudFormation", "DescribeStackResources", element("StackResources", members));
+    }
+
+    private String describeInstances(Map<String, String> params){
+        List<String> ids = getList(params, "InstanceId.");
+        StringBuilder items = new StringBuilder();
+        for(Instance instance : instances){
+            if(!ids.isEmpty() && !ids.contains(instance.instanceId))continue;
+            items.append(item(new StringBuilder()
+                    .append(element("instanceId", instance.instanceId))
+                    .append(element("instanceState", element("code", "16") + element("name", "running")))
+                    .append(element("privateIpAddress", instance.privateIp))
+                    .append(element("instanceType", "c5.xlarge"))
+                    .append(element("cpuOptions", element("coreCount", String.valueOf(INSTANCE_VCPUS / 2)) + element("threadsPerCore", "2")))));
+        }
+        String reservation = element("reservationId", "r-0simulated") + element("ownerId", ACCOUNT)
+                + element("instancesSet", items);
+        return ec2Response("DescribeInstances", element("reservationSet", item(reservation)));
+    }
+
+    private String describeInstanceStatus(Map<String, String> params){
+        List<String> ids = getList(params, "InstanceId.");
+        long created = createdAt + stackCreateMillis;
+        long now = System.currentTimeMillis();
+        boolean running = stackName != null && now >= created;
+        String status = running && now >= created + instancesOkMillis ? "ok" : "initializing";
+
+        StringBuilder items = new StringBuilder();
+        for(Instance instance : instances){
+            if(!ids.isEmpty() && !ids.contains(instance.instanceId))continue;
+            items.append(item(new StringBuilder()
+                    .append(element("instanceId", instance.instanceId))
+                    .append(element("availabilityZone", REGION + "a"))
+                    .append(element("instanceState", running
+                            ? element("code", "16") + element("name", "running")
+                            : element("code", "0") + element("name", "pending")))
+                    .append(element("systemStatus", element("status", status)))
+                    .append(element("instanceStatus", element("status", status)))));
+        }
+        return ec2Response("DescribeInstanceStatus", element("instanceStatusSet", items));
+    }
+
+    private String describeLoadBalancers(Map<String, String> params) throws ServiceException {
+        for(String name : getList(params, "LoadBalancerNames.member.")){
+            if(!name.equals(LOAD_BALANCER)){
+                throw new ServiceException(400, "LoadBalancerNotFound", "There is no ACTIVE Load Balancer named '" + name + "'");
+            }
+        }
+
+        StringBuilder members = new StringBuilder();
+        for(Instance instance : instances){
+            members.append(member(element("InstanceId", instance.instanceId)));
+        }
+        String description = element("LoadBalancerName", LOAD_BALANCER)
+                + element("DNSName", LOAD_BALANCER + "." + REGION + ".elb.amazonaws.com")
+                + element("Instances", members);
+        return response("ELB", "DescribeLoadBalancers", element("LoadBalancerDescriptions", member(description)));
+    }
+
+    private String describeInstanceHealth(Map<String, String> params) throws ServiceException {
+        if(!LOAD_BALANCER.equals(params.get("LoadBalancerName"))){
+            throw new ServiceException(400, "LoadBalancerNotFound", "There is no ACTIVE Load Balancer named '" + params.get("LoadBalancerName") + "'");
+        }
+
+        StringBuilder members = new StringBuilder();
+        for(Instance instance : instances){
+            boolean healthy = instance.healthy.getAsBoolean();
+            members.append(member(new StringBuilder()
+                    .append(element("InstanceId", instance.instanceId))
+                    .append(element("State", healthy ? "InService" : "OutOfService"))
+                    .append(element("ReasonCode", healthy ? "N/A" : "Instance"))
+                    .append(element("Description", healthy ? "N/A" : "Instance has failed at least the UnhealthyThreshold number of health checks consecutively."))));
+        }
+        return response("ELB", "DescribeInstanceHealth", element("InstanceStates", members));
+    }
+
+    private String describeDBInstances(){
+        String instance = element("DBInstanceIdentifier", DATABASE)
+                + element("DBInstanceClass", "db.m5.large")
+                + element("Engine", "postgres")
+                + element("DBInstanceStatus", "available")
+                + element("Endpoint", element("Address", DATABASE_ADDRESS) + element("Port", "5432"));
+        return response("RDS", "DescribeDBInstances", element("DBInstances", element("DBInstance", instance)));
+    }
+
+    // The stack and its nested stack are created over the stack creation time, the nested stack a little earlier
+    private String getStackStatus(boolean nested){
+        long done = createdAt + (nested ? stackCreateMillis * 9 / 10 : stackCreateMillis);
+        return System.currentTimeMillis() >= done ? "CREATE_COMPLETE" : "CREATE_IN_PROGRESS";
+    }
+
+    private List<Event> getEvents(boolean nested){
+        List<Event> events = new ArrayList<Event>();
+        String stack = "AWS::CloudFormation::Stack";
+        if(nested){
+            events.add(new Event(createdAt + 2, nestedId, nestedName, nestedName, nestedId, stack, "CREATE_IN_PROGRESS"));
+            events.add(new Event(createdAt + stackCreateMillis / 10, nestedId, nestedName, "LoadBalancer", LOAD_BALANCER, "AWS::ElasticLoadBalancing::LoadBalancer", "CREATE_IN_PROGRESS"));
+            events.add(new Event(createdAt + stackCreateMillis * 3 / 10, nestedId, nestedName, "LoadBalancer", LOAD_BALANCER, "AWS::ElasticLoadBalancing::LoadBalancer", "CREATE_COMPLETE"));
+            events.add(new Event(createdAt + stackCreateMillis * 3 / 10, nestedId, nestedName, "ClusterNodeGroup", nestedName + "-ClusterNodeGroup", "AWS::AutoScaling::AutoScalingGroup", "CREATE_IN_PROGRESS"));
+            events.add(new Event(createdAt + stackCreateMillis * 8 / 10, nestedId, nestedName, "ClusterNodeGroup", nestedName + "-ClusterNodeGroup", "AWS::AutoScaling::AutoScalingGroup", "CREATE_COMPLETE"));
+            events.add(new Event(createdAt + stackCreateMillis * 9 / 10, nestedId, nestedName, nestedName, nestedId, stack, "CREATE_COMPLETE"));
+        } else {
+            events.add(new Event(createdAt, stackId, stackName, stackName, stackId, stack, "CREATE_IN_PROGRESS"));
+            events.add(new Event(createdAt + 1, stackId, stackName, "JiraDCStack", nestedId, stack, "CREATE_IN_PROGRESS"));
+            events.add(new Event(createdAt + stackCreateMillis * 9 / 10, stackId, stackName, "JiraDCStack", nestedId, stack, "CREATE_COMPLETE"));
+            events.add(new Event(createdAt + stackCreateMillis, stackId, stackName, stackName, stackId, stack, "CREATE_COMPLETE"));
+        }
+        return events;
+    }
+
+    private boolean isNested(String name) throws ServiceException {
+        if(stackName != null && (name.equals(stackName) || name.equals(stackId)))return false;
+        if(stackName != null && (name.equals(nestedName) || name.equals(nestedId)))return true;
+        throw new ServiceException(400, "ValidationError", "Stack with id " + name + " does not exist");
+    }
+
+    private String resource(String stack, String stackArn, String logicalId, String physicalId, String type){
+        return element("StackName", stack) + element("StackId", stackArn) + element("LogicalResourceId", logicalId)
+                + element("PhysicalResourceId", physicalId) + element("ResourceType", type)
+                + element("Timestamp", timestamp(createdAt)) + element("ResourceStatus", "CREATE_COMPLETE");
+    }
+
+    private static String output(String key, String value){
+        return element("OutputKey", key) + element("OutputValue", value) + element("Description", "Simulated " + key);
+    }
+
+    private static String response(String service, String action, String result){
+        return "<" + action + "Response xmlns=\"" + NAMESPACES.get(service) + "\">"
+                + element(action + "Result", result)
+                + element("ResponseMetadata", element("RequestId", UUID.randomUUID().toString()))
+                + "</" + action + "Response>";
+    }
+
+    private static String ec2Response(String action, String body){
+        return "<" + action + "Response xmlns=\"" + NAMESPACES.get("EC2") + "\">"
+                + element("requestId", UUID.randomUUID().toString()) + body
+                + "</" + action + "Response>";
+    }
+
+    private static void respond(HttpExchange exchange, String service, ServiceException error) throws IOException {
+        String body;
+        if(service.equals("EC2")){
+            body = "<Response><Errors><Error>" + element("Code", error.code) + element("Message", error.getMessage())
+                    + "</Error></Errors>" + element("RequestID", UUID.randomUUID().toString()) + "</Response>";
+        } else {
+            body = "<ErrorResponse xmlns=\"" + NAMESPACES.get(service) + "\"><Error>" + element("Type", "Sender")
+                    + element("Code", error.code) + element("Message", error.getMessage()) + "</Error>"
+                    + element("RequestId", UUID.randomUUID().toString()) + "</ErrorResponse>";
+        }
+        respond(exchange, error.status, body);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> readForm(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while((len = in.read(buffer)) >= 0){
+            body.write(buffer, 0, len);
+        }
+
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        for(String pair : new String(body.toByteArray(), StandardCharsets.UTF_8).split("&")){
+            if(pair.isEmpty())continue;
+            int equals = pair.indexOf('=');
+            String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    // Values of a list parameter, e.g. "InstanceId.1", "InstanceId.2"
+    private static List<String> getList(Map<String, String> params, String prefix){
+        List<String> values = new ArrayList<String>();
+        for(int i = 1; params.containsKey(prefix + i); i++){
+            values.add(params.get(prefix + i));
+        }
+        return values;
+    }
+
+    private static String member(CharSequence content){
+        return element("member", content);
+    }
+
+    private static String item(CharSequence content){
+        return element("item", content);
+    }
+
+    private static String element(String name, CharSequence content){
+        String text = content.toString();
+        // Nested elements are passed as they are, values are escaped
+        if(!text.startsWith("<")){
+            text = text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        }
+        return "<" + name + ">" + text + "</" + name + ">";
+    }
+
+    private static String timestamp(long millis){
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
@@ -0,0 +1,87 @@
+package com.hindsightsoftware.upkeep;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.KeyPair;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.pubkey.AcceptAllPublickeyAuthenticator;
+import org.apache.sshd.server.command.CommandFactory;
+import org.apache.sshd.server.forward.AcceptAllForwardingFilter;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.shell.ProcessShellCommandFactory;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+/**
+ * In-process SSH server on a loopback address that plays the bastion and the private nodes. By default it runs
+ * commands with the local shell. It serves SFTP from a directory and accepts any key and any port forwarding.
+ */
+public class EmbeddedSshServer implements AutoCloseable {
+    private final SshServer server;
+    private final Path directory;
+    private final Path root;
+    private final File privateKey;
+
+    public EmbeddedSshServer() throws Exception {
+        this("127.0.0.1", 0, null, ProcessShellCommandFactory.INSTANCE);
+    }
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     * @param root directory that SFTP paths are relative to, or null for a new temporary directory
+     * @param commands runs the commands of exec channels
+     */
+    public EmbeddedSshServer(String host, int port, Path root, CommandFactory commands) throws Exception {
+        directory = Files.createTempDirectory("upkeep-sshd");
+        privateKey = directory.resolve("id_rsa").toFile();
+        KeyPair keyPair = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 2048);
+        keyPair.writePrivateKey(privateKey.getAbsolutePath());
+        keyPair.dispose();
+
+        SimpleGeneratorHostKeyProvider hostKeys = new SimpleGeneratorHostKeyProvider(directory.resolve("host.ser"));
+        hostKeys.setAlgorithm(KeyUtils.RSA_ALGORITHM);
+
+        this.root = root != null ? root : Files.createDirectories(directory.resolve("root"));
+        server = SshServer.setUpDefaultServer();
+        server.setHost(host);
+        server.setPort(port);
+        server.setKeyPairProvider(hostKeys);
+        server.setPublickeyAuthenticator(AcceptAllPublickeyAuthenticator.INSTANCE);
+        server.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE);
+        server.setCommandFactory(commands);
+        server.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(this.root));
+        server.start();
+    }
+
+    public String getHost(){
+        return server.getHost();
+    }
+
+    public int getPort(){
+        return server.getPort();
+    }
+
+    public File getPrivateKey(){
+        return privateKey;
+    }
+
+    /**
+     * Directory that SFTP paths are relative to.
+     */
+    public Path getRoot(){
+        return root;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop(true);
+        Files.walk(directory).sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+    }
+}
@@ -0,0 +1,69 @@
+package com.hindsightsoftware.upkeep;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a large page from a local HTTP server over a kept-alive connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpBenchmark {
+    @Param({ "65536", "4194304" })
+    public int size;
+
+    private HttpServer server;
+    private Http http;
+    private String url;
+
+    @Setup
+    public void setUp() throws Exception {
+        char[] page = new char[size];
+        Arrays.fill(page, 'x');
+        byte[] body = new String(page).getBytes(StandardCharsets.UTF_8);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        http = new Http(10, 10);
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        http.close();
+        server.stop(0);
+    }
+
+    @Benchmark
+    public String getBody() throws Exception {
+        try (Http.Response response = http.GET(url).send()) {
+            return response.getBody();
+        }
+    }
+
+    // Scans the whole page, as the needle is not in it
+    @Benchmark
+    public String find() throws Exception {
+        try (Http.Response response = http.GET(url).send()) {
+            return response.find("\"RUNNING\"");
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.hindsightsoftware.upkeep;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A JIRA node of the simulator, on its own loopback address. Its SSH server runs the plugin's scripts with bash in a
+ * sandbox directory, where the JIRA paths and the home of "ec2-user" are mapped, and where sudo, the AWS CLI and the
+ * Postgres tools are simulated. Its status endpoint on port 8080 reports "RUNNING" while the simulated JIRA is ready.
+ */
+public class SimulatedNode implements AutoCloseable {
+    private static final String JIRA_PATH = "/opt/atlassian/jira";
+    private static final String JIRA_HOME = "/var/atlassian/application-data/jira";
+    private static final String USER_HOME = "/home/ec2-user";
+    private static final int JIRA_PORT = 8080;
+
+    private final String address;
+    private final Path home;
+    private final Path jira;
+    private final Path jiraHome;
+    private final String environment;
+    private final EmbeddedSshServer ssh;
+    private final HttpServer status;
+    private final AtomicInteger probes = new AtomicInteger();
+
+    /**
+     * @param sandbox directory of the node
+     * @param tools directory of the simulated tools and JIRA scripts
+     * @param environment variables of the simulated tools
+     * @param commands counts the commands run on all nodes
+     */
+    public SimulatedNode(String address, int sshPort, Path sandbox, Path tools, Map<String, String> environment,
+                         AtomicInteger commands) throws Exception {
+        this.address = address;
+        this.home = Files.createDirectories(sandbox.resolve("home"));
+        this.jira = sandbox.resolve("jira");
+        this.jiraHome = sandbox.resolve("jira-home");
+        Files.createDirectories(jira.resolve("work"));
+        Files.createDirectories(jira.resolve("logs"));
+        Files.createDirectories(jiraHome.resolve("log"));
+        Files.createDirectories(jiraHome.resolve("caches/indexes"));
+        Files.createDirectories(jira.resolve("bin"));
+        for(String script : new String[]{ "startup.sh", "shutdown.sh", "jira.sh" }){
+            Files.copy(tools.resolve(script), jira.resolve("bin").resolve(script));
+        }
+
+        StringBuilder exports = new StringBuilder("cd " + quote(home) + " && export HOME=" + quote(home)
+                + " PATH=" + quote(tools) + ":\"$PATH\" SIM_JIRA_HOME=" + quote(jiraHome));
+        for(Map.Entry<String, String> variable : environment.entrySet()){
+            exports.append(' ').append(variable.getKey()).append('=').append(quote(variable.getValue()));
+        }
+        this.environment = exports.append(" || exit 1\n").toString();
+
+        ssh = new EmbeddedSshServer(address, sshPort, home, (channel, command) -> {
+            commands.incrementAndGet();
+            return new ProcessShellFactory("bash", "-c", toSandbox(command)).createShell(channel);
+        });
+
+        status = HttpServer.create(new InetSocketAddress(address, JIRA_PORT), 0);
+        status.createContext("/status", exchange -> {
+            probes.incrementAndGet();
+            boolean ready = isReady();
+            byte[] body = (ready ? "{\"state\":\"RUNNING\"}" : "{\"state\":\"STARTING\"}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(ready ? 200 : 503, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        status.start();
+    }
+
+    public String getAddress(){
+        return address;
+    }
+
+    /**
+     * Whether the simulated JIRA has started and is serving.
+     */
+    public boolean isReady(){
+        return Files.exists(jira.resolve("ready"));
+    }
+
+    /**
+     * Number of requests to the status endpoint so far.
+     */
+    public int getProbes(){
+        return probes.get();
+    }
+
+    /**
+     * Starts JIRA outside of SSH and waits until it is ready, as it is on a node of a new stack.
+     */
+    public void boot(long timeoutMillis) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder("bash", "-c", toSandbox("SIM_BOOT_MS=0 " + JIRA_PATH + "/bin/startup.sh"))
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+        if(process.waitFor() != 0){
+            throw new IOException("Failed to start the simulated JIRA on " + address);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while(!isReady()){
+            if(System.nanoTime() > deadline){
+                throw new IOException("The simulated JIRA on " + address + " did not start");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    // Runs the command in the sandbox of the node, with the simulated tools first on the path
+    private String toSandbox(String command){
+        return environment + command.replace(JIRA_PATH, jira.toString())
+                .replace(JIRA_HOME, jiraHome.toString())
+                .replace(USER_HOME, home.toString());
+    }
+
+    /**
+     * Kills the simulated JIRA and stops the servers of the node.
+     */
+    @Override
+    public void close() throws IOException {
+        status.stop(0);
+        ssh.close();
+
+        File pidFile = jira.resolve("work/catalina.pid").toFile();
+        if(pidFile.isFile()){
+            String pid = new String(Files.readAllBytes(pidFile.toPath()), StandardCharsets.UTF_8).trim();
+            try {
+                new ProcessBuilder("kill", "-KILL", pid).redirectErrorStream(true).start().waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String quote(Object value){
+        return "'" + value.toString().replace("'", "'\\''") + "'";
+    }
+}
@@ -0,0 +1,310 @@
+package com.hindsightsoftware.upkeep;
+
+import org.apache.maven.model.Model;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the start goal end to end without AWS: the AWS clients call a local {@link AwsStub}, the bastion and the nodes
+ * are embedded SSH servers on loopback addresses and JIRA is simulated on every node. Reports the wall-clock time of
+ * the goal, its phases and how many AWS calls, SSH commands and JIRA status probes it made, so that changes to polling
+ * and parallelism can be compared.
+ *
+ * Arguments are "name=value" pairs. The simulation is configured with:
+ * <ul>
+ *     <li>nodes - number of JIRA nodes (2)</li>
+ *     <li>stack.create - milliseconds it takes to create the stack (20000)</li>
+ *     <li>instances.ok - milliseconds it takes the instances to pass their status checks afterwards (5000)</li>
+ *     <li>aws.latency - milliseconds every AWS call takes (50)</li>
+ *     <li>aws.throttle - share of the AWS calls that are throttled, from 0 to 1 (0.05)</li>
+ *     <li>s3.latency - milliseconds every AWS CLI call on a node takes (200)</li>
+ *     <li>database.restore - milliseconds the database restore takes with one job (8000)</li>
+ *     <li>jira.boot - milliseconds JIRA takes to start (10000)</li>
+ *     <li>jira.stop - milliseconds JIRA takes to stop once it has been asked to (1000)</li>
+ * </ul>
+ * Any other name is a field of the start goal, e.g. "startupStrategy=serial" or "pollDelay=1".
+ */
+public class Simulator {
+    private static final String[] TOOLS = { "sudo", "aws", "psql", "createdb", "dropdb", "pg_restore", "nproc",
+            "startup.sh", "shutdown.sh", "jira.sh" };
+    private static final String[] PHASES = { "startup", "stack", "instances", "restore", "readiness" };
+    private static final String BUCKET = "simulated-backups";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        options.put("nodes", "2");
+        options.put("stack.create", "20000");
+        options.put("instances.ok", "5000");
+        options.put("aws.latency", "50");
+        options.put("aws.throttle", "0.05");
+        options.put("s3.latency", "200");
+        options.put("database.restore", "8000");
+        options.put("jira.boot", "10000");
+        options.put("jira.stop", "1000");
+
+        Map<String, String> goal = new LinkedHashMap<String, String>();
+        for(String arg : args){
+            int equals = arg.indexOf('=');
+            if(equals < 0){
+                System.err.println("Expected name=value but got: " + arg);
+                System.exit(2);
+            }
+            String name = arg.substring(0, equals);
+            (options.containsKey(name) ? options : goal).put(name, arg.substring(equals + 1));
+        }
+
+        System.exit(run(options, goal) ? 0 : 1);
+    }
+
+    private static boolean run(Map<String, String> options, Map<String, String> goal) throws Exception {
+        int nodeCount = Integer.parseInt(options.get("nodes"));
+        Path work = Files.createTempDirectory("upkeep-simulator");
+        Path tools = Files.createDirectories(work.resolve("tools"));
+        for(String tool : TOOLS){
+            try (InputStream in = Simulator.class.getResourceAsStream("/simulator/" + tool)) {
+                Files.copy(in, tools.resolve(tool), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tools.resolve(tool).toFile().setExecutable(true);
+        }
+
+        Map<String, String> environment = new LinkedHashMap<String, String>();
+        environment.put("SIM_S3", work.resolve("s3").toString());
+        environment.put("SIM_DB", Files.createDirectories(work.resolve("db")).toString());
+        environment.put("SIM_S3_LATENCY_MS", options.get("s3.latency"));
+        environment.put("SIM_RESTORE_MS", options.get("database.restore"));
+        environment.put("SIM_BOOT_MS", options.get("jira.boot"));
+        environment.put("SIM_STOP_MS", options.get("jira.stop"));
+        environment.put("SIM_VCPUS", String.valueOf(AwsStub.INSTANCE_VCPUS));
+        createBackups(work);
+
+        // The AWS SDK reads the credentials of the profile from the home directory
+        Path userHome = Files.createDirectories(work.resolve("user/.aws")).getParent();
+        Files.write(userHome.resolve(".aws/credentials"), ("[default]\naws_access_key_id = AKIASIMULATED\n" +
+                "aws_secret_access_key = simulated\n").getBytes(StandardCharsets.UTF_8));
+        System.setProperty("user.home", userHome.toString());
+
+        AtomicInteger commands = new AtomicInteger();
+        List<SimulatedNode> nodes = new ArrayList<SimulatedNode>();
+        List<AwsStub.Instance> instances = new ArrayList<AwsStub.Instance>();
+        EmbeddedSshServer bastion = new EmbeddedSshServer();
+        AwsStub aws = null;
+        try {
+            // The nodes listen on the same port as the bastion, each on its own loopback address
+            for(int i = 0; i < nodeCount; i++){
+                SimulatedNode node = new SimulatedNode("127.0.0." + (i + 2), bastion.getPort(),
+                        work.resolve("node-" + (i + 1)), tools, environment, commands);
+                nodes.add(node);
+                instances.add(new AwsStub.Instance(String.format("i-%017d", i + 1), node.getAddress(), node::isReady));
+                node.boot(TimeUnit.SECONDS.toMillis(30));
+            }
+            aws = new AwsStub(instances, bastion.getHost(), Long.parseLong(options.get("stack.create")),
+                    Long.parseLong(options.get("instances.ok")), Long.parseLong(options.get("aws.latency")),
+                    Double.parseDouble(options.get("aws.throttle")));
+
+            MavenProject project = new MavenProject(new Model());
+            Start start = configure(work, aws, bastion, project, goal);
+
+            long started = System.nanoTime();
+            boolean success = true;
+            try {
+                start.execute();
+            } catch (MojoExecutionException e) {
+                success = false;
+                System.err.println("Start failed: " + e.getMessage());
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+            report(options, nodes, aws, commands.get(), project, success, millis);
+            return success;
+        } finally {
+            for(SimulatedNode node : nodes){
+                node.close();
+            }
+            if(aws != null){
+                aws.close();
+            }
+            bastion.close();
+            delete(work.toFile());
+        }
+    }
+
+    // A custom format dump and a gzip compressed indexes tarball, in the simulated bucket
+    private static void createBackups(Path work) throws IOException, InterruptedException {
+        Path bucket = Files.createDirectories(work.resolve("s3").resolve(BUCKET));
+        Files.write(bucket.resolve("jira.dump"), "PGDMP simulated".getBytes(StandardCharsets.UTF_8));
+
+        Path indexes = Files.createDirectories(work.resolve("indexes/issues"));
+        for(int i = 0; i < 16; i++){
+            Files.write(indexes.resolve("_" + i + ".cfs"), new byte[4096]);
+        }
+        Process tar = new ProcessBuilder("tar", "-czf", bucket.resolve("indexes.tar.gz").toString(), "-C",
+                work.resolve("indexes").toString(), "issues").inheritIO().start();
+        if(tar.waitFor() != 0){
+            throw new IOException("Failed to create the simulated indexes backup");
+        }
+    }
+
+    // The values Maven would inject, pointed at the simulator, then the overrides of the arguments
+    private static Start configure(Path work, AwsStub aws, EmbeddedSshServer bastion, MavenProject project,
+                                   Map<String, String> overrides) throws Exception {
+        File credentials = work.resolve("credentials").toFile();
+        File config = work.resolve("config").toFile();
+        Files.write(credentials.toPath(), "[default]\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(config.toPath(), "[default]\nregion = us-east-2\n".getBytes(StandardCharsets.UTF_8));
+
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("skip", false);
+        values.put("templateUrl", "https://simulated.invalid/quickstart-jira-dc-with-vpc.template.yaml");
+        values.put("confPath", work.resolve("cloudformation.conf").toString());
+        values.put("stackName", "JIRA-Data-Center");
+        values.put("region", "us-east-2");
+        values.put("awsProfile", "default");
+        values.put("awsMaxConnections", 50);
+        values.put("awsEndpoint", aws.getEndpoint());
+        values.put("onFailure", "DELETE");
+        values.put("baseUrlOutputsId", "JIRAURL");
+        values.put("baseUrlPath", work.resolve("baseurl").toString());
+        values.put("rdsPassword", "simulated");
+        values.put("parameters", new HashMap<String, String>());
+        values.put("sshPrivateKeyFile", bastion.getPrivateKey());
+        values.put("sshPort", bastion.getPort());
+        values.put("s3AwsCredentials", credentials);
+        values.put("s3AwsConfig", config);
+        values.put("s3RestoreIndexesEnabled", true);
+        values.put("s3RestoreDatabaseEnabled", true);
+        values.put("s3RestoreDatabaseForce", false);
+        values.put("s3RestoreBucket", BUCKET);
+        values.put("s3RestorePsqlFileName", "jira.dump");
+        values.put("s3RestorePsqlFormat", "auto");
+        values.put("s3RestorePsqlJobs", 0);
+        values.put("s3RestoreIndexesFileName", "indexes.tar.gz");
+        values.put("maxJiraHttpWait", 300);
+        values.put("maxLoadBalancerWait", 300);
+        values.put("restoreThreads", 8);
+        values.put("stopGracefulTimeout", 60);
+        values.put("stopTermTimeout", 30);
+        values.put("startupStrategy", "parallel");
+        values.put("startupStartedPattern", "Plugin system lateStartup ended|[Rr]eady to serve");
+        values.put("startupFatalPattern", "JOHNSON|Server startup failed|OutOfMemoryError");
+        values.put("timelinePath", work.resolve("timeline-start.json").toString());
+        values.put("project", project);
+        values.put("sshIdleTimeout", 300);
+        values.put("readinessQuorum", 0);
+        values.put("maxStackWait", 3600);
+        values.put("maxInstancesWait", 1800);
+        values.put("stackCacheTtl", 300);
+        values.put("httpMaxConnections", 20);
+        values.put("httpMaxConnectionsPerRoute", 10);
+        values.put("pollDelay", 5);
+        values.put("pollMaxDelay", 30);
+
+        Start start = new Start();
+        start.setLog(new SystemStreamLog());
+        for(Map.Entry<String, Object> value : values.entrySet()){
+            set(start, value.getKey(), value.getValue());
+        }
+        for(Map.Entry<String, String> override : overrides.entrySet()){
+            set(start, override.getKey(), override.getValue());
+        }
+        return start;
+    }
+
+    private static void set(Start start, String name, Object value) throws ReflectiveOperationException {
+        Field field;
+        try {
+            field = Start.class.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("Neither a simulation option nor a field of the start goal: " + name);
+        }
+
+        Class<?> type = field.getType();
+        if(value instanceof String && type != String.class){
+            String text = (String)value;
+            if(type == Integer.class || type == int.class){
+                value = Integer.valueOf(text);
+            } else if(type == Boolean.class || type == boolean.class){
+                value = Boolean.valueOf(text);
+            } else if(type == File.class){
+                value = new File(text);
+            } else {
+                throw new IllegalArgumentException("Field " + name + " of the start goal can not be set from an argument");
+            }
+        }
+        field.setAccessible(true);
+        field.set(start, value);
+    }
+
+    private static void report(Map<String, String> options, List<SimulatedNode> nodes, AwsStub aws, int commands,
+                               MavenProject project, boolean success, long millis){
+        StringBuilder report = new StringBuilder("\n");
+        report.append(String.format("Simulated start of %d nodes %s in %.1f s%n", nodes.size(),
+                success ? "succeeded" : "failed", millis / 1000.0));
+
+        report.append("Simulation:");
+        for(Map.Entry<String, String> option : options.entrySet()){
+            report.append(' ').append(option.getKey()).append('=').append(option.getValue());
+        }
+        report.append(String.format("%n"));
+
+        report.append("Phases:");
+        for(String phase : PHASES){
+            String duration = project.getProperties().getProperty("jira.cloudformation.timeline.start." + phase + ".duration");
+            if(duration != null && !duration.equals("-1")){
+                report.append(String.format(" %s %.1f s,", phase, Long.parseLong(duration) / 1000.0));
+            }
+        }
+        report.setLength(report.length() - (report.charAt(report.length() - 1) == ',' ? 1 : 0));
+        report.append(String.format("%n"));
+
+        Map<String, Integer> calls = aws.getCalls();
+        int total = 0;
+        for(int count : calls.values()){
+            total += count;
+        }
+        report.append(String.format("AWS calls: %d, of which %d throttled%n", total, aws.getThrottled()));
+        for(Map.Entry<String, Integer> call : calls.entrySet()){
+            report.append(String.format("    %-40s %5d%n", call.getKey(), call.getValue()));
+        }
+
+        int probes = 0;
+        for(SimulatedNode node : nodes){
+            probes += node.getProbes();
+        }
+        report.append(String.format("SSH commands: %d%n", commands));
+        report.append(String.format("JIRA status probes: %d%n", probes));
+        System.out.print(report);
+    }
+
+    private static void delete(File file){
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                // Do not follow links out of the sandbox
+                if(!Files.isSymbolicLink(child.toPath())){
+                    delete(child);
+                } else {
+                    child.delete();
+                }
+            }
+        }
+        file.delete();
+    }
+}
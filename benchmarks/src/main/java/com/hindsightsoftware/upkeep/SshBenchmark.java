@@ -0,0 +1,49 @@
+package com.hindsightsoftware.upkeep;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remote command latency and the throughput of the output pump, through a pooled session tunnelled over the bastion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SshBenchmark {
+    // Lines of output of the command, 1 measures the latency of a command
+    @Param({ "1", "10000", "200000" })
+    public int lines;
+
+    private EmbeddedSshServer server;
+    private SshTunnelManager tunnels;
+    private SshSessionPool pool;
+    private SecuredShellClient ssh;
+
+    @Setup
+    public void setUp() throws Exception {
+        QuietLog log = new QuietLog();
+        server = new EmbeddedSshServer();
+        tunnels = new SshTunnelManager(log, server.getPrivateKey(), server.getPort());
+        pool = new SshSessionPool(log, tunnels, 300);
+        ssh = new SecuredShellClient(log, pool, server.getHost(), server.getHost(), System.getProperty("user.name"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pool.close();
+        tunnels.close();
+        server.close();
+    }
+
+    @Benchmark
+    public int execute(Blackhole blackhole){
+        int status = ssh.execute("seq 1 " + lines, blackhole::consume);
+        if(status != 0)throw new IllegalStateException("Command returned status: " + status);
+        return status;
+    }
+}
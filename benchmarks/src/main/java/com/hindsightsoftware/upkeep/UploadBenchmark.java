@@ -0,0 +1,69 @@
+package com.hindsightsoftware.upkeep;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SFTP upload of one file. The remote copy is deleted before every upload, so the whole file is always sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+    @Param({ "1048576", "67108864" })
+    public int size;
+
+    private EmbeddedSshServer server;
+    private SshTunnelManager tunnels;
+    private SshSessionPool pool;
+    private SecuredShellClient ssh;
+    private File file;
+    private File remote;
+    private List<SecuredShellClient.FilePair> files;
+
+    @Setup
+    public void setUp() throws Exception {
+        QuietLog log = new QuietLog();
+        server = new EmbeddedSshServer();
+        tunnels = new SshTunnelManager(log, server.getPrivateKey(), server.getPort());
+        pool = new SshSessionPool(log, tunnels, 300);
+        ssh = new SecuredShellClient(log, pool, server.getHost(), server.getHost(), System.getProperty("user.name"));
+
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        file = File.createTempFile("upkeep-upload", ".bin");
+        Files.write(file.toPath(), content);
+
+        Files.createDirectories(server.getRoot().resolve("upload"));
+        remote = server.getRoot().resolve("upload").resolve(file.getName()).toFile();
+        files = Collections.singletonList(new SecuredShellClient.FilePair(file.getAbsolutePath(), "upload/"));
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteRemote(){
+        remote.delete();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pool.close();
+        tunnels.close();
+        server.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public boolean upload(){
+        if(!ssh.uploadFile(files))throw new IllegalStateException("Upload failed");
+        return true;
+    }
+}
@@ -0,0 +1,44 @@
+package com.hindsightsoftware.upkeep;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the stack outputs to the configuration file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteOutputsBenchmark {
+    @Param({ "100", "10000" })
+    public int outputs;
+
+    private Map<String, String> values;
+    private File file;
+
+    @Setup
+    public void setUp() throws Exception {
+        values = new LinkedHashMap<String, String>();
+        for(int i = 0; i < outputs; i++){
+            values.put("Output" + i, "arn:aws:cloudformation:us-east-2:123456789012:stack/JIRA-Data-Center/" + i);
+        }
+        file = File.createTempFile("upkeep-outputs", ".properties");
+    }
+
+    @TearDown
+    public void tearDown(){
+        file.delete();
+    }
+
+    @Benchmark
+    public void writeOutputs() throws Exception {
+        Start.writeOutputs(file.getAbsolutePath(), values);
+    }
+}
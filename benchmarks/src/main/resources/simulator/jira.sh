@@ -0,0 +1,20 @@
+#!/bin/bash
+# Simulated JIRA process: logs its startup phases over $SIM_BOOT_MS, serves until it is stopped
+# and takes $SIM_STOP_MS to shut down. It is ready while the "ready" file exists.
+jira=$(cd "$(dirname "$0")/.." && pwd)
+boot=${SIM_BOOT_MS:-0}
+ready=$jira/ready
+
+pause() { sleep "$(( $1 / 1000 )).$(printf '%03d' $(( $1 % 1000 )))" & wait $!; }
+log() { echo "$(date '+%Y-%m-%d %H:%M:%S,%3N') main INFO [c.a.jira.startup.JiraStartupLogger] $1" >> "$SIM_JIRA_HOME/log/atlassian-jira.log"; }
+
+trap 'rm -f "$ready"; pause ${SIM_STOP_MS:-0}; exit 0' TERM
+
+pause $(( boot / 10 )); log "Plugin system earlyStartup begun"
+pause $(( boot * 2 / 10 )); log "Plugin system earlyStartup ended"
+pause $(( boot / 10 )); echo "INFO [main] org.apache.catalina.startup.Catalina.start Server startup in $(( boot * 4 / 10 )) ms" >> "$jira/logs/catalina.out"
+pause $(( boot * 3 / 10 )); log "Plugin system lateStartup begun"
+pause $(( boot * 3 / 10 )); log "Plugin system lateStartup ended"
+touch "$ready"
+
+while true; do pause 60000; done
@@ -0,0 +1,4 @@
+#!/bin/bash
+# Simulated JIRA shutdown.sh: asks the JIRA process to stop
+jira=$(cd "$(dirname "$0")/.." && pwd)
+kill -TERM "$(cat "$jira/work/catalina.pid" 2> /dev/null)" 2> /dev/null
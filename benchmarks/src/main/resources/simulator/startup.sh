@@ -0,0 +1,6 @@
+#!/bin/bash
+# Simulated JIRA startup.sh: starts the JIRA process in the background and records its PID
+jira=$(cd "$(dirname "$0")/.." && pwd)
+nohup bash -c 'exec -a "java -classpath bootstrap.jar org.apache.catalina.startup.Bootstrap start" bash "$0"' "$jira/bin/jira.sh" \
+    < /dev/null > /dev/null 2>&1 &
+echo $! > "$jira/work/catalina.pid"
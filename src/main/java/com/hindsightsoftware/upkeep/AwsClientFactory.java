@@ -0,0 +1,148 @@
+package com.hindsightsoftware.upkeep;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClientBuilder;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingClientBuilder;
+import com.amazonaws.services.rds.AmazonRDS;
+import com.amazonaws.services.rds.AmazonRDSClientBuilder;
+import org.apache.maven.plugin.logging.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the AWS service clients of one mojo execution. Credentials are resolved once, all clients share
+ * the same connection pool and timeout settings, and every client is only built when it is first used.
+ */
+public class AwsClientFactory {
+    private static final int CONNECTION_TIMEOUT = 10000;
+    private static final int SOCKET_TIMEOUT = 60000;
+    private static final int MAX_ERROR_RETRY = 8;
+    private static final AwsRequestRecorder REQUEST_RECORDER = new AwsRequestRecorder();
+
+    private final Log log;
+    private final String region;
+    private final String profile;
+    private final String endpoint;
+    private final ClientConfiguration configuration;
+    private AWSCredentialsProvider credentials;
+    private AmazonCloudFormation cloudFormation;
+    private AmazonEC2 ec2;
+    private AmazonElasticLoadBalancing elb;
+    private AmazonRDS rds;
+    private AmazonDynamoDB dynamoDb;
+    private long startupNanos = 0;
+
+    public AwsClientFactory(Log log, String region, String profile, int maxConnections){
+        this(log, region, profile, maxConnections, null);
+    }
+
+    /**
+     * @param endpoint URL all services are called at instead of their regional endpoints, e.g. a local stub,
+     *                 or null to use the regional endpoints
+     */
+    public AwsClientFactory(Log log, String region, String profile, int maxConnections, String endpoint){
+        this.log = log;
+        this.region = region;
+        this.profile = profile;
+        this.endpoint = endpoint;
+        this.configuration = new ClientConfiguration()
+                .withMaxConnections(maxConnections)
+                .withConnectionTimeout(CONNECTION_TIMEOUT)
+                .withSocketTimeout(SOCKET_TIMEOUT)
+                .withTcpKeepAlive(true)
+                .withRetryPolicy(PredefinedRetryPolicies.getDefaultRetryPolicyWithCustomMaxRetries(MAX_ERROR_RETRY));
+    }
+
+    public synchronized AmazonCloudFormation getCloudFormation(){
+        if(cloudFormation == null){
+            AWSCredentialsProvider provider = getCredentials();
+            long start = System.nanoTime();
+            cloudFormation = configure(AmazonCloudFormationClientBuilder.standard(), provider).build();
+            created("CloudFormation client", start);
+        }
+        return cloudFormation;
+    }
+
+    public synchronized AmazonEC2 getEc2(){
+        if(ec2 == null){
+            AWSCredentialsProvider provider = getCredentials();
+            long start = System.nanoTime();
+            ec2 = configure(AmazonEC2ClientBuilder.standard(), provider).build();
+            created("EC2 client", start);
+        }
+        return ec2;
+    }
+
+    public synchronized AmazonElasticLoadBalancing getElb(){
+        if(elb == null){
+            AWSCredentialsProvider provider = getCredentials();
+            long start = System.nanoTime();
+            elb = configure(AmazonElasticLoadBalancingClientBuilder.standard(), provider).build();
+            created("Elastic Load Balancing client", start);
+        }
+        return elb;
+    }
+
+    public synchronized AmazonRDS getRds(){
+        if(rds == null){
+            AWSCredentialsProvider provider = getCredentials();
+            long start = System.nanoTime();
+            rds = configure(AmazonRDSClientBuilder.standard(), provider).build();
+            created("RDS client", start);
+        }
+        return rds;
+    }
+
+    public synchronized AmazonDynamoDB getDynamoDb(){
+        if(dynamoDb == null){
+            AWSCredentialsProvider provider = getCredentials();
+            long start = System.nanoTime();
+            dynamoDb = configure(AmazonDynamoDBClientBuilder.standard(), provider).build();
+            created("DynamoDB client", start);
+        }
+        return dynamoDb;
+    }
+
+    /**
+     * Time spent resolving credentials and building clients so far, in milliseconds.
+     */
+    public synchronized long getStartupMillis(){
+        return TimeUnit.NANOSECONDS.toMillis(startupNanos);
+    }
+
+    private <T extends AwsClientBuilder<T, ?>> T configure(T builder, AWSCredentialsProvider provider){
+        builder.withCredentials(provider)
+                .withClientConfiguration(configuration)
+                .withRequestHandlers(REQUEST_RECORDER);
+        if(endpoint != null && endpoint.length() > 0){
+            return builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region));
+        }
+        return builder.withRegion(region);
+    }
+
+    private AWSCredentialsProvider getCredentials(){
+        if(credentials == null){
+            long start = System.nanoTime();
+            credentials = new AWSStaticCredentialsProvider(new ProfileCredentialsProvider(profile).getCredentials());
+            created("credentials of profile \"" + profile + "\"", start);
+        }
+        return credentials;
+    }
+
+    private void created(String what, long start){
+        long elapsed = System.nanoTime() - start;
+        startupNanos += elapsed;
+        log.info("Initialised AWS " + what + " in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+    }
+}
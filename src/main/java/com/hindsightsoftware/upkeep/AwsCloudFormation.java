@@ -18,43 +18,83 @@ package com.hindsightsoftware.upkeep;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
 import com.amazonaws.services.cloudformation.AmazonCloudFormation;
-import com.amazonaws.services.cloudformation.AmazonCloudFormationClientBuilder;
 import com.amazonaws.services.cloudformation.model.*;
 import com.amazonaws.services.cloudformation.model.Stack;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import org.apache.maven.plugin.logging.Log;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
  * This is a modified version of CloudFormationSample.java from:
  * https://github.com/aws/aws-sdk-java/blob/master/src/samples/AwsCloudFormation/CloudFormationSample.java
  */
 public class AwsCloudFormation {
+    // Events older than the start of the wait, minus this margin, belong to earlier operations
+    private static final long EVENTS_CLOCK_SKEW = 60000;
+
+    // Snapshots are served from memory for 5 minutes unless configured otherwise
+    private static final long DEFAULT_SNAPSHOT_TTL = 300000;
+
+    private static final List<String> CAPABILITIES = Arrays.asList("CAPABILITY_IAM", "CAPABILITY_NAMED_IAM", "CAPABILITY_AUTO_EXPAND");
+
     private final Log log;
-    private final AmazonCloudFormation cf;
+    private final AwsClientFactory clients;
+    private final PollScheduler scheduler;
+    private final int maxWait;
+    private final long snapshotTtl;
+    private final Map<String, StackSnapshot> snapshots = new HashMap<String, StackSnapshot>();
+
+    /**
+     * @param maxWait maximum time in seconds spent waiting for a stack to complete
+     */
+    public AwsCloudFormation(Log log, AwsClientFactory clients, PollScheduler scheduler, int maxWait){
+        this(log, clients, scheduler, maxWait, DEFAULT_SNAPSHOT_TTL);
+    }
 
-    public AwsCloudFormation(Log log){
+    /**
+     * @param maxWait maximum time in seconds spent waiting for a stack to complete
+     * @param snapshotTtl time to live of stack snapshots in milliseconds
+     */
+    public AwsCloudFormation(Log log, AwsClientFactory clients, PollScheduler scheduler, int maxWait, long snapshotTtl){
         this.log = log;
-        AmazonCloudFormationClientBuilder builder = AmazonCloudFormationClientBuilder.standard();
-        builder.withCredentials(new AWSStaticCredentialsProvider(new ProfileCredentialsProvider("default").getCredentials()));
-        builder.setRegion("us-east-2");
-        this.cf = builder.build();
+        this.clients = clients;
+        this.scheduler = scheduler;
+        this.maxWait = maxWait;
+        this.snapshotTtl = snapshotTtl;
+    }
+
+    /**
+     * @param status status as returned by {@link #waitForCompletion(String)}
+     * @return whether the stack has been created or updated
+     */
+    public static boolean isComplete(String status){
+        return status.startsWith("CREATE_COMPLETE ") || status.startsWith("UPDATE_COMPLETE ");
+    }
+
+    private AmazonCloudFormation cf(){
+        return clients.getCloudFormation();
     }
 
     public boolean build(String stackName, String templateUrl, String onFailure,
                          Map<String, String> parameters, Map<String, String> outputs, Map<String, String> resources) {
+        return build(stackName, templateUrl, onFailure, parameters, Collections.<String, String>emptyMap(), outputs, resources);
+    }
+
+    /**
+     * @param tags tags of the stack if it is created, an existing stack keeps its tags
+     */
+    public boolean build(String stackName, String templateUrl, String onFailure, Map<String, String> parameters,
+                         Map<String, String> tags, Map<String, String> outputs, Map<String, String> resources) {
 
         log.info("Creating a stack called: \"" + stackName + "\"");
 
         try {
             // Check if stack has been previously created
             boolean skipCreation = false;
-            for (Stack stack : cf.describeStacks(new DescribeStacksRequest()).getStacks()) {
+            for (Stack stack : cf().describeStacks(new DescribeStacksRequest()).getStacks()) {
                 if(stack.getStackName().equals(stackName)){
                     skipCreation = true;
                     break;
@@ -63,47 +103,34 @@ public class AwsCloudFormation {
 
             // Create a stack
             if(!skipCreation) {
-                CreateStackRequest createRequest = new CreateStackRequest();
-                createRequest.setStackName(stackName);
-                createRequest.setTemplateURL(templateUrl);
-                createRequest.setCapabilities(Arrays.asList("CAPABILITY_IAM", "CAPABILITY_NAMED_IAM", "CAPABILITY_AUTO_EXPAND"));
-                
-                try {
-                    createRequest.setOnFailure(OnFailure.fromValue(onFailure));
-                } catch (IllegalArgumentException e) {
-                    log.error("Expected single value from: " + Arrays.stream(OnFailure.values()).toString());
+                CreateStackRequest createRequest = createRequest(stackName, templateUrl, onFailure, parameters, tags);
+                if(createRequest == null){
                     return false;
                 }
 
-                List<Parameter> parameterList = new ArrayList<Parameter>();
-
-                for (Map.Entry<String, String> pair : parameters.entrySet()) {
-                    parameterList.add(
-                            new Parameter()
-                                    .withParameterKey(pair.getKey())
-                                    .withParameterValue(pair.getValue() == null ? "" : pair.getValue())
-                    );
-                }
-                createRequest.setParameters(parameterList);
-
                 log.info("Waiting... This may take up to 30 minutes.");
-                cf.createStack(createRequest);
+                cf().createStack(createRequest);
             } else {
                 log.warn("Stack has been already created!");
             }
 
             // Wait for stack to be created
             // Note that you could use SNS notifications on the CreateStack call to track the progress of the stack creation
-            log.info("Stack creation completed, the stack " + stackName + " completed with " + waitForCompletion(cf, stackName));
+            String status = waitForCompletion(stackName);
+            if(!isComplete(status)){
+                log.error("Stack creation failed, the stack " + stackName + " completed with " + status);
+                return false;
+            }
+            log.info("Stack creation completed, the stack " + stackName + " completed with " + status);
 
             // Show all the stacks for this account along with the resources for each stack
-            Stack stack = cf.describeStacks(new DescribeStacksRequest().withStackName(stackName)).getStacks().get(0);
+            StackSnapshot snapshot = getSnapshot(stackName);
+            snapshot.refresh();
+            Stack stack = snapshot.getStack();
             if(stack != null) {
                 log.info("Stack : " + stack.getStackName() + " [" + stack.getStackStatus().toString() + "]");
 
-                DescribeStackResourcesRequest stackResourceRequest = new DescribeStackResourcesRequest();
-                stackResourceRequest.setStackName(stack.getStackName());
-                for (StackResource resource : cf.describeStackResources(stackResourceRequest).getStackResources()) {
+                for (StackResource resource : snapshot.getStackResources()) {
                     resources.put(resource.getLogicalResourceId(), resource.getPhysicalResourceId());
                     log.info(String.format("    %1$-40s %2$-25s %3$s", resource.getResourceType(), resource.getLogicalResourceId(), resource.getPhysicalResourceId()));
                 }
@@ -131,17 +158,87 @@ public class AwsCloudFormation {
         }
     }
 
+    /**
+     * Starts creating a stack, without waiting for it to complete.
+     */
+    public boolean create(String stackName, String templateUrl, String onFailure, Map<String, String> parameters, Map<String, String> tags){
+        try {
+            CreateStackRequest createRequest = createRequest(stackName, templateUrl, onFailure, parameters, tags);
+            if(createRequest == null){
+                return false;
+            }
+            cf().createStack(createRequest);
+            log.info("Creating a stack called: \"" + stackName + "\"");
+            return true;
+
+        } catch (AmazonServiceException ase){
+            AwsUtils.printAmazonServiceException(log, ase);
+            return false;
+
+        } catch (AmazonClientException ace) {
+            AwsUtils.printAmazonClientException(log, ace);
+            return false;
+        }
+    }
+
+    private CreateStackRequest createRequest(String stackName, String templateUrl, String onFailure,
+                                             Map<String, String> parameters, Map<String, String> tags){
+        CreateStackRequest createRequest = new CreateStackRequest();
+        createRequest.setStackName(stackName);
+        createRequest.setTemplateURL(templateUrl);
+        createRequest.setCapabilities(CAPABILITIES);
+
+        try {
+            createRequest.setOnFailure(OnFailure.fromValue(onFailure));
+        } catch (IllegalArgumentException e) {
+            log.error("Expected single value from: " + Arrays.stream(OnFailure.values()).toString());
+            return null;
+        }
+
+        List<Parameter> parameterList = new ArrayList<Parameter>();
+
+        for (Map.Entry<String, String> pair : parameters.entrySet()) {
+            parameterList.add(
+                    new Parameter()
+                            .withParameterKey(pair.getKey())
+                            .withParameterValue(pair.getValue() == null ? "" : pair.getValue())
+            );
+        }
+        createRequest.setParameters(parameterList);
+        createRequest.setTags(toTags(tags));
+        return createRequest;
+    }
+
+    /**
+     * All stacks that have not been deleted.
+     */
+    public List<Stack> list(){
+        List<Stack> stacks = new ArrayList<Stack>();
+        DescribeStacksRequest request = new DescribeStacksRequest();
+        do {
+            DescribeStacksResult result = cf().describeStacks(request);
+            stacks.addAll(result.getStacks());
+            request.setNextToken(result.getNextToken());
+        } while(request.getNextToken() != null);
+        return stacks;
+    }
+
     public boolean stop(String stackName){
         try {
             // Delete the stack
             DeleteStackRequest deleteRequest = new DeleteStackRequest();
             deleteRequest.setStackName(stackName);
             log.info("Deleting the stack called " + deleteRequest.getStackName() + ".");
-            cf.deleteStack(deleteRequest);
+            cf().deleteStack(deleteRequest);
 
             // Wait for stack to be deleted
             // Note that you could used SNS notifications on the original CreateStack call to track the progress of the stack deletion
-            log.info("Stack creation completed, the stack " + stackName + " completed with " + waitForCompletion(cf, stackName));
+            String status = waitForCompletion(stackName);
+            if(!status.startsWith("DELETE_COMPLETE ") && !status.startsWith("NO_SUCH_STACK ")){
+                log.error("Stack deletion failed, the stack " + stackName + " completed with " + status);
+                return false;
+            }
+            log.info("Stack deletion completed, the stack " + stackName + " completed with " + status);
 
         } catch (AmazonServiceException ase){
             if(ase.getStatusCode() == 400 && ase.getErrorMessage().contains("does not exist")){
@@ -163,87 +260,136 @@ public class AwsCloudFormation {
         return true;
     }
 
-    public String getOutputValue(String stackName, String key) {
-        DescribeStacksRequest describeStackRequest = new DescribeStacksRequest();
-        describeStackRequest.setStackName(stackName);
-
-        Stack stack = cf.describeStacks(describeStackRequest).getStacks().get(0);
-        if(stack != null) {
-            Optional<Output> value = stack.getOutputs().stream().filter(o -> o.getOutputKey().equals(key)).findFirst();
-            if (!value.isPresent()) throw new RuntimeException("Unable to find output: " + key + " in stack: " + stackName);
-            return value.get().getOutputValue();
+    /**
+     * Returns the cached snapshot of the stack, describing the stack only when it is first needed.
+     */
+    public synchronized StackSnapshot getSnapshot(String stackName) {
+        StackSnapshot snapshot = snapshots.get(stackName);
+        if (snapshot == null) {
+            snapshot = new StackSnapshot(cf(), stackName, snapshotTtl);
+            snapshots.put(stackName, snapshot);
         }
-        throw new RuntimeException("Failed to get stack outputs by name: " + stackName);
+        return snapshot;
+    }
+
+    public String getOutputValue(String stackName, String key) {
+        return getSnapshot(stackName).getOutput(key);
     }
 
     public String getResourceValue(String stackName, String key) {
-        DescribeStackResourcesRequest stackResourceRequest = new DescribeStackResourcesRequest();
-        stackResourceRequest.setStackName(stackName);
-
-        DescribeStackResourcesResult result = cf.describeStackResources(stackResourceRequest);
-        if (result != null) {
-            Optional<StackResource> value = result.getStackResources().stream().filter(r -> r.getLogicalResourceId().equals(key)).findFirst();
-            if (!value.isPresent()) throw new RuntimeException("Unable to find resource: " + key + " in stack: " + stackName);
-            return value.get().getPhysicalResourceId();
+        return getSnapshot(stackName).getResource(key);
+    }
+
+    /**
+     * Waits for a stack to complete transitioning, i.e. until its status is no longer *_IN_PROGRESS, for example
+     * CREATE_COMPLETE, CREATE_FAILED, ROLLBACK_COMPLETE, DELETE_COMPLETE or DELETE_FAILED. The events of the stack
+     * and its nested stacks are logged as they arrive. The status is confirmed with the stack itself once an event
+     * reports a final status, or when no new events have arrived since the previous poll.
+     * @return the status followed by its reason in brackets, "NO_SUCH_STACK" if the stack does not exist or
+     *         "TIMEOUT" if the stack did not complete in time
+     */
+    public String waitForCompletion(String stackName) throws InterruptedException {
+        List<Stack> stacks = cf().describeStacks(new DescribeStacksRequest().withStackName(stackName)).getStacks();
+        if (stacks.isEmpty()) {
+            return "NO_SUCH_STACK (Stack has been deleted)";
+        }
+
+        Stack stack = stacks.get(0);
+        String stackId = stack.getStackId();
+        String[] status = new String[]{ stack.getStackStatus(), stack.getStackStatusReason() };
+        if (isTerminal(status[0])) {
+            return status[0] + " (" + status[1] + ")";
         }
-        throw new RuntimeException("Failed to get stack resources by name: " + stackName);
-    }
-
-    // Wait for a stack to complete transitioning
-    // End stack states are:
-    //    CREATE_COMPLETE
-    //    CREATE_FAILED
-    //    DELETE_FAILED
-    //    ROLLBACK_FAILED
-    // OR the stack no longer exists
-    public String waitForCompletion(AmazonCloudFormation stackbuilder, String stackName) throws InterruptedException {
-
-        DescribeStacksRequest wait = new DescribeStacksRequest();
-        wait.setStackName(stackName);
-        Boolean completed = false;
-        String  stackStatus = "Unknown";
-        String  stackReason = "";
-
-        Map<String, String> resourceStatusMap = new HashMap<String, String>();
-
-        while (!completed) {
-            List<Stack> stacks = stackbuilder.describeStacks(wait).getStacks();
-            if (stacks.isEmpty())
-            {
-                completed   = true;
-                stackStatus = "NO_SUCH_STACK";
-                stackReason = "Stack has been deleted";
-            } else {
-                for (Stack stack : stacks) {
-                    if (stack.getStackStatus().equals(StackStatus.CREATE_COMPLETE.toString()) ||
-                            stack.getStackStatus().equals(StackStatus.CREATE_FAILED.toString()) ||
-                            stack.getStackStatus().equals(StackStatus.ROLLBACK_FAILED.toString()) ||
-                            stack.getStackStatus().equals(StackStatus.DELETE_FAILED.toString())) {
-                        completed = true;
-                        stackStatus = stack.getStackStatus();
-                        stackReason = stack.getStackStatusReason();
-                    }
 
-                    // Print out status of resources
-                    DescribeStackResourcesRequest stackResourceRequest = new DescribeStackResourcesRequest();
-                    stackResourceRequest.setStackName(stack.getStackName());
-                    for (StackResource resource : stackbuilder.describeStackResources(stackResourceRequest).getStackResources()) {
-                        String name = resource.getLogicalResourceId();
-                        if (!resourceStatusMap.containsKey(name) || !resourceStatusMap.get(name).equals(resource.getResourceStatus())) {
-                            String status = resource.getResourceStatus();
-                            String statusReason = resource.getResourceStatusReason();
-
-                            log.info(name + " " + status + (statusReason != null ? " ( " + statusReason + " )" : ""));
-                            resourceStatusMap.put(name, resource.getResourceStatus());
-                        }
+        // Events of the stack and all of its nested stacks, only new events are fetched on every poll
+        Date since = new Date(System.currentTimeMillis() - EVENTS_CLOCK_SKEW);
+        Map<String, String> lastEventIds = new LinkedHashMap<String, String>();
+        lastEventIds.put(stackId, null);
+
+        CompletableFuture<Boolean> wait = scheduler.poll("stack " + stackName, maxWait, () -> {
+            boolean idle = true;
+            String eventStatus = null;
+            for (String trackedStackId : new ArrayList<String>(lastEventIds.keySet())) {
+                for (StackEvent event : fetchNewEvents(trackedStackId, lastEventIds, since)) {
+                    idle = false;
+                    String statusReason = event.getResourceStatusReason();
+                    String name = trackedStackId.equals(stackId)
+                            ? event.getLogicalResourceId()
+                            : event.getStackName() + "/" + event.getLogicalResourceId();
+
+                    log.info(name + " " + event.getResourceStatus() + (statusReason != null ? " ( " + statusReason + " )" : ""));
+
+                    if (stackId.equals(event.getPhysicalResourceId())) {
+                        eventStatus = event.getResourceStatus();
+                    } else if ("AWS::CloudFormation::Stack".equals(event.getResourceType())
+                            && event.getPhysicalResourceId() != null && event.getPhysicalResourceId().startsWith("arn:")
+                            && !lastEventIds.containsKey(event.getPhysicalResourceId())) {
+                        // Follow the events of the nested stack as well
+                        lastEventIds.put(event.getPhysicalResourceId(), null);
                     }
                 }
             }
+            if (!idle && (eventStatus == null || !isTerminal(eventStatus))) {
+                return false;
+            }
+
+            // The stack is described by ID, which still finds it once it has been deleted
+            Stack current = cf().describeStacks(new DescribeStacksRequest().withStackName(stackId)).getStacks().get(0);
+            status[0] = current.getStackStatus();
+            status[1] = current.getStackStatusReason();
+            return isTerminal(status[0]);
+        });
+
+        try {
+            if (!wait.get()) {
+                return "TIMEOUT (Stack did not complete within " + maxWait + " seconds)";
+            }
+        } catch (ExecutionException e) {
+            return "FAILED (" + e.getCause().getMessage() + ")";
+        } catch (InterruptedException e) {
+            wait.cancel(true);
+            throw e;
+        }
+        return status[0] + " (" + status[1] + ")";
+    }
+
+    private static boolean isTerminal(String stackStatus) {
+        return !stackStatus.endsWith("_IN_PROGRESS");
+    }
+
+    private static List<Tag> toTags(Map<String, String> tags){
+        List<Tag> list = new ArrayList<Tag>();
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            list.add(new Tag().withKey(tag.getKey()).withValue(tag.getValue()));
+        }
+        return list;
+    }
+
+    // Pages through the stack events (newest first) until the last event seen on the previous poll
+    private List<StackEvent> fetchNewEvents(String stackId, Map<String, String> lastEventIds, Date since) {
+        String lastEventId = lastEventIds.get(stackId);
+        List<StackEvent> events = new ArrayList<StackEvent>();
+        String nextToken = null;
+
+        pages:
+        do {
+            DescribeStackEventsResult result = cf().describeStackEvents(
+                    new DescribeStackEventsRequest().withStackName(stackId).withNextToken(nextToken));
+
+            for (StackEvent event : result.getStackEvents()) {
+                if (event.getEventId().equals(lastEventId) || (lastEventId == null && event.getTimestamp().before(since))) {
+                    break pages;
+                }
+                events.add(event);
+            }
+            nextToken = result.getNextToken();
+        } while (nextToken != null);
 
-            // Not done yet so sleep for 10 seconds.
-            if (!completed) Thread.sleep(10000);
+        if (!events.isEmpty()) {
+            lastEventIds.put(stackId, events.get(0).getEventId());
         }
 
-        return stackStatus + " (" + stackReason + ")";
+        Collections.reverse(events);
+        return events;
     }
 }
@@ -2,31 +2,25 @@ package com.hindsightsoftware.upkeep;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.services.rds.AmazonRDS;
-import com.amazonaws.services.rds.AmazonRDSClientBuilder;
 import com.amazonaws.services.rds.model.DescribeDBInstancesRequest;
 import com.amazonaws.services.rds.model.DescribeDBInstancesResult;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.services.rds.model.DBInstance;
+import com.amazonaws.services.rds.model.DBInstanceNotFoundException;
 import org.apache.maven.plugin.logging.Log;
 
 public class AwsDatabase {
     private final Log log;
-    private final AmazonRDS rds;
+    private final AwsClientFactory clients;
 
-    public AwsDatabase(Log log){
+    public AwsDatabase(Log log, AwsClientFactory clients){
         this.log = log;
-        AmazonRDSClientBuilder builder = AmazonRDSClientBuilder.standard();
-        builder.withCredentials(
-                new AWSStaticCredentialsProvider(new ProfileCredentialsProvider("default").getCredentials()));
-        builder.setRegion("us-east-2");
-        this.rds = builder.build();
+        this.clients = clients;
     }
 
     public String getEndpoint(String physicalId){
         try {
             DescribeDBInstancesRequest request = new DescribeDBInstancesRequest().withDBInstanceIdentifier(physicalId);
-            DescribeDBInstancesResult result = rds.describeDBInstances(request);
+            DescribeDBInstancesResult result = clients.getRds().describeDBInstances(request);
             if(result.getDBInstances().size() == 0){
                 log.error("No database instances found for physical ID: " + physicalId);
                 return null;
@@ -41,4 +35,65 @@ public class AwsDatabase {
             return null;
         }
     }
+
+    /**
+     * @param address endpoint address of the database instance, which starts with the instance identifier
+     * @return the instance class, e.g. "db.m5.large", or null if no instance has this endpoint
+     */
+    public String getInstanceClass(String address){
+        String identifier = address.substring(0, address.indexOf('.') < 0 ? address.length() : address.indexOf('.'));
+        try {
+            DescribeDBInstancesRequest request = new DescribeDBInstancesRequest().withDBInstanceIdentifier(identifier);
+            for(DBInstance instance : clients.getRds().describeDBInstances(request).getDBInstances()){
+                if(instance.getEndpoint() != null && address.equalsIgnoreCase(instance.getEndpoint().getAddress())){
+                    return instance.getDBInstanceClass();
+                }
+            }
+
+            log.error("No database instance found for endpoint: " + address);
+            return null;
+        } catch (DBInstanceNotFoundException e){
+            log.error("No database instance found for endpoint: " + address);
+            return null;
+
+        } catch (AmazonServiceException ase){
+            AwsUtils.printAmazonServiceException(log, ase);
+            return null;
+
+        } catch (AmazonClientException ace) {
+            AwsUtils.printAmazonClientException(log, ace);
+            return null;
+        }
+    }
+
+    /**
+     * Estimates the vCPUs of an instance class from its size, e.g. 2 for "db.m5.large" and 16 for "db.r5.4xlarge".
+     * @return the number of vCPUs, or -1 if the size is not known
+     */
+    public static int getVCpus(String instanceClass){
+        if(instanceClass == null)return -1;
+
+        String[] parts = instanceClass.split("\\.");
+        String size = parts[parts.length - 1];
+        String family = parts.length > 1 ? parts[parts.length - 2] : "";
+        switch(size){
+            case "micro":
+            case "small":
+                // Burstable classes from t3 on, e.g. db.t3 and db.t4g, have 2 vCPUs even at these sizes
+                return family.startsWith("t") && !family.equals("t2") ? 2 : 1;
+            case "medium":
+            case "large":
+                return 2;
+            case "xlarge":
+                return 4;
+        }
+        if(size.endsWith("xlarge")){
+            try {
+                return 4 * Integer.parseInt(size.substring(0, size.length() - "xlarge".length()));
+            } catch (NumberFormatException e){
+                return -1;
+            }
+        }
+        return -1;
+    }
 }
@@ -2,47 +2,92 @@ package com.hindsightsoftware.upkeep;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
+import com.amazonaws.services.ec2.model.CpuOptions;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
 import org.apache.maven.plugin.logging.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class AwsInstance {
+    /**
+     * Node facts that later restore steps use to size their parallelism.
+     */
+    public static class Details {
+        public final String instanceId;
+        public final String privateIp;
+        public final String instanceType;
+        // 0 if the instance does not report its CPU options
+        public final int vCpus;
+
+        public Details(String instanceId, String privateIp, String instanceType, int vCpus){
+            this.instanceId = instanceId;
+            this.privateIp = privateIp;
+            this.instanceType = instanceType;
+            this.vCpus = vCpus;
+        }
+
+        @Override
+        public String toString(){
+            return instanceId + " " + privateIp + " (" + instanceType + ", " + vCpus + " vCPU)";
+        }
+    }
+
     private final Log log;
-    private final AmazonEC2 ec2;
+    private final AwsClientFactory clients;
 
-    public AwsInstance(Log log){
+    public AwsInstance(Log log, AwsClientFactory clients){
         this.log = log;
-        AmazonEC2ClientBuilder builder = AmazonEC2ClientBuilder.standard();
-        builder.withCredentials(
-                new AWSStaticCredentialsProvider(new ProfileCredentialsProvider("default").getCredentials()));
-        builder.setRegion("us-east-2");
-        this.ec2 = builder.build();
+        this.clients = clients;
     }
 
-    public String getPrivateIp(String physicalId){
+    /**
+     * Describes all instances with as few paginated DescribeInstances calls as possible,
+     * in the order of the given IDs. Instances that could not be found are left out of the map.
+     */
+    public Map<String, Details> describe(Collection<String> physicalIds){
+        Map<String, Details> found = new HashMap<String, Details>();
         try {
-            DescribeInstancesRequest request = new DescribeInstancesRequest().withInstanceIds(physicalId);
-            DescribeInstancesResult result = ec2.describeInstances(request);
-            if(result.getReservations().size() == 0){
-                log.error("No reservations instances found for physical ID: " + physicalId);
-                return null;
-            }
-            if(result.getReservations().get(0).getInstances().size() == 0){
-                log.error("No instances found for physical ID: " + physicalId);
-                return null;
-            }
-            return result.getReservations().get(0).getInstances().get(0).getPrivateIpAddress();
+            DescribeInstancesRequest request = new DescribeInstancesRequest().withInstanceIds(new ArrayList<String>(physicalIds));
+            do {
+                DescribeInstancesResult result = clients.getEc2().describeInstances(request);
+                for(Reservation reservation : result.getReservations()){
+                    for(Instance instance : reservation.getInstances()){
+                        found.put(instance.getInstanceId(), toDetails(instance));
+                    }
+                }
+                request.setNextToken(result.getNextToken());
+            } while(request.getNextToken() != null);
+
         } catch (AmazonServiceException ase){
             AwsUtils.printAmazonServiceException(log, ase);
-            return null;
 
         } catch (AmazonClientException ace) {
             AwsUtils.printAmazonClientException(log, ace);
-            return null;
         }
+
+        Map<String, Details> details = new LinkedHashMap<String, Details>();
+        for(String physicalId : physicalIds){
+            if(found.containsKey(physicalId)){
+                details.put(physicalId, found.get(physicalId));
+            } else {
+                log.error("No instances found for physical ID: " + physicalId);
+            }
+        }
+        return details;
+    }
+
+    private static Details toDetails(Instance instance){
+        CpuOptions cpu = instance.getCpuOptions();
+        int vCpus = cpu != null && cpu.getCoreCount() != null && cpu.getThreadsPerCore() != null
+                ? cpu.getCoreCount() * cpu.getThreadsPerCore() : 0;
+
+        return new Details(instance.getInstanceId(), instance.getPrivateIpAddress(), instance.getInstanceType(), vCpus);
     }
 }
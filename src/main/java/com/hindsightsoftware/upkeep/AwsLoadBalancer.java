@@ -2,47 +2,41 @@ package com.hindsightsoftware.upkeep;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
 import com.amazonaws.services.ec2.model.DescribeInstanceStatusRequest;
 import com.amazonaws.services.ec2.model.DescribeInstanceStatusResult;
 import com.amazonaws.services.ec2.model.InstanceStatus;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
-import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingClientBuilder;
 import com.amazonaws.services.elasticloadbalancing.model.*;
 
 import org.apache.maven.plugin.logging.Log;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class AwsLoadBalancer {
+    // Instance states from which an instance never becomes ready on its own
+    private static final Set<String> TERMINAL_STATES = new HashSet<String>(
+            Arrays.asList("shutting-down", "terminated", "stopping", "stopped"));
+
     private final Log log;
-    private final AmazonElasticLoadBalancing elb;
-    private final AmazonEC2 ec2;
+    private final AwsClientFactory clients;
+    private final PollScheduler scheduler;
 
-    public AwsLoadBalancer(Log log){
+    public AwsLoadBalancer(Log log, AwsClientFactory clients, PollScheduler scheduler){
         this.log = log;
-        AmazonElasticLoadBalancingClientBuilder builder = AmazonElasticLoadBalancingClientBuilder.standard();
-        builder.withCredentials(
-                new AWSStaticCredentialsProvider(new ProfileCredentialsProvider("default").getCredentials()));
-        builder.setRegion("us-east-2");
-        this.elb = builder.build();
-        
-        AmazonEC2ClientBuilder builder2 = AmazonEC2ClientBuilder.standard();
-        builder2.withCredentials(
-                new AWSStaticCredentialsProvider(new ProfileCredentialsProvider("default").getCredentials()));
-        builder2.setRegion("us-east-2");
-        this.ec2 = builder2.build();
+        this.clients = clients;
+        this.scheduler = scheduler;
     }
 
     public Map<String, String> getHealthStatus(String physicalId){
         try {
             DescribeInstanceHealthRequest request = new DescribeInstanceHealthRequest().withLoadBalancerName(physicalId);
-            DescribeInstanceHealthResult result = elb.describeInstanceHealth(request);
+            DescribeInstanceHealthResult result = clients.getElb().describeInstanceHealth(request);
             return result.getInstanceStates().stream().collect(Collectors.toMap(InstanceState::getInstanceId, InstanceState::getState));
         } catch (AmazonServiceException ase){
             AwsUtils.printAmazonServiceException(log, ase);
@@ -58,7 +52,7 @@ public class AwsLoadBalancer {
     public String getDns(String physicalId){
         try {
             DescribeLoadBalancersRequest request = new DescribeLoadBalancersRequest().withLoadBalancerNames(physicalId);
-            DescribeLoadBalancersResult result = elb.describeLoadBalancers(request);
+            DescribeLoadBalancersResult result = clients.getElb().describeLoadBalancers(request);
 
             if (result.getLoadBalancerDescriptions().size() == 0) {
                 log.error("Cloud not find JIRA load balancer!");
@@ -80,7 +74,7 @@ public class AwsLoadBalancer {
     public List<String> getInstanceIDs(String physicalId){
         try {
             DescribeLoadBalancersRequest request = new DescribeLoadBalancersRequest().withLoadBalancerNames(physicalId);
-            List<LoadBalancerDescription> loadBalancers = elb.describeLoadBalancers(request).getLoadBalancerDescriptions();
+            List<LoadBalancerDescription> loadBalancers = clients.getElb().describeLoadBalancers(request).getLoadBalancerDescriptions();
 
             if (loadBalancers.size() != 1) {
                 log.error("Cloud not find JIRA load balancer!");
@@ -99,95 +93,85 @@ public class AwsLoadBalancer {
         }
     }
 
-    public boolean waitForInstances(String physicalId){
+    public CompletableFuture<Boolean> waitForInstances(String physicalId, int maxWaitTime){
         try {
             DescribeLoadBalancersRequest request = new DescribeLoadBalancersRequest().withLoadBalancerNames(physicalId);
-            List<LoadBalancerDescription> loadBalancers = elb.describeLoadBalancers(request).getLoadBalancerDescriptions();
+            List<LoadBalancerDescription> loadBalancers = clients.getElb().describeLoadBalancers(request).getLoadBalancerDescriptions();
 
             if(loadBalancers.size() != 1){
                 log.error("Cloud not find JIRA load balancer!");
-                return false;
+                return CompletableFuture.completedFuture(false);
             }
 
             List<com.amazonaws.services.elasticloadbalancing.model.Instance> loadBalancerInstances = loadBalancers.get(0).getInstances();
             if(loadBalancerInstances.size() == 0){
                 log.error("No instances found for JIRA load balancer!");
-                return false;
+                return CompletableFuture.completedFuture(false);
             }
 
-            // Wait for all instances to start...
-            for(Instance instance : loadBalancerInstances) {
-                String instanceId = instance.getInstanceId();
+            List<String> instanceIds = loadBalancerInstances.stream().map(Instance::getInstanceId).collect(Collectors.toList());
+            for(String instanceId : instanceIds) {
                 log.info("Found JIRA Node instance: \"" + instanceId + "\"");
-                log.info("Waiting for instance to be ready...");
-
-                do {
-                    DescribeInstanceStatusRequest describeInstanceRequest = new DescribeInstanceStatusRequest().withInstanceIds(instanceId);
-                    DescribeInstanceStatusResult describeInstancesResult = ec2.describeInstanceStatus(describeInstanceRequest);
-
-                    if (describeInstancesResult.getInstanceStatuses().size() == 0) {
-                        log.error("No reservation found for instance ID: \"" + instanceId + "\"");
-                        return false;
+            }
+            log.info("Waiting for " + instanceIds.size() + " instances to be ready...");
+
+            // One batched status request per tick for all instances, logging only the transitions
+            Map<String, String> lastStatuses = new HashMap<String, String>();
+            return scheduler.poll("JIRA Node instances", maxWaitTime, () -> {
+                Map<String, InstanceStatus> statuses = describeInstanceStatuses(instanceIds);
+                int ready = 0;
+
+                for(String instanceId : instanceIds) {
+                    InstanceStatus instanceStatus = statuses.get(instanceId);
+                    if (instanceStatus == null) {
+                        throw new PollScheduler.AbortException("No reservation found for instance ID: \"" + instanceId + "\"");
                     }
 
-                    InstanceStatus instanceStatus = describeInstancesResult.getInstanceStatuses().get(0);
-
                     String state = instanceStatus.getInstanceState().getName();
                     String status = instanceStatus.getInstanceStatus().getStatus();
 
-                    if (state.equals("terminated")) {
-                        log.error("JIRA Node is terminated!");
+                    if (TERMINAL_STATES.contains(state)) {
+                        throw new PollScheduler.AbortException("JIRA Node instance: \"" + instanceId + "\" is " + state + "!");
                     }
-                    if (state.equals("running") && status.equals("ok")) {
-                        log.info("JIRA Node instance: \"" + instanceId + "\" is running and ready for connection");
-                        break;
-                    } else {
-                        log.info("JIRA Node instance: \"" + instanceId + "\" status: \"" + status + "\" waiting...");
-                        Thread.sleep(30000);
+
+                    String current = state + "/" + status;
+                    if (!current.equals(lastStatuses.put(instanceId, current))) {
+                        log.info("JIRA Node instance: \"" + instanceId + "\" state: \"" + state + "\" status: \"" + status + "\"");
                     }
 
-                } while (true);
-            }
+                    if (state.equals("running") && status.equals("ok")) {
+                        ready++;
+                    }
+                }
 
-            return true;
+                if (ready == instanceIds.size()) {
+                    log.info("All " + ready + " JIRA Node instances are running and ready for connection");
+                    return true;
+                }
+                return false;
+            });
 
         } catch (AmazonServiceException ase){
             AwsUtils.printAmazonServiceException(log, ase);
-            return false;
+            return CompletableFuture.completedFuture(false);
 
         } catch (AmazonClientException ace) {
             AwsUtils.printAmazonClientException(log, ace);
-            return false;
-
-        } catch (InterruptedException iex){
-            log.error("Error while Thread.sleep() " + iex.getMessage());
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
     }
 
-    public boolean waitForHealthCheck(String physicalId, int maxWaitTime, long waitDelay){
-        return new TimeoutBlock(maxWaitTime, 10000) {@Override public boolean block(){
-            Map<String, String> statuses = getHealthStatus(physicalId);
-
-            long num = statuses.entrySet().stream().filter(s -> s.getValue().equals("OutOfService")).count();
-            if(num == 0){
-                log.info("All instances are in service and ready!");
-                return true;
+    private Map<String, InstanceStatus> describeInstanceStatuses(List<String> instanceIds){
+        Map<String, InstanceStatus> statuses = new HashMap<String, InstanceStatus>();
+        DescribeInstanceStatusRequest request = new DescribeInstanceStatusRequest()
+                .withInstanceIds(instanceIds).withIncludeAllInstances(true);
+        do {
+            DescribeInstanceStatusResult result = clients.getEc2().describeInstanceStatus(request);
+            for(InstanceStatus status : result.getInstanceStatuses()) {
+                statuses.put(status.getInstanceId(), status);
             }
-
-            log.info("Waiting for " + num + " load balancer instances health check out of " + statuses.size() + ":");
-            for(Map.Entry<String, String> entry : statuses.entrySet()){
-                log.info("    " + entry.getKey() + " - " + entry.getValue());
-            }
-
-            try {
-                log.info("Checking again in 15 seconds...");
-                Thread.sleep(waitDelay);
-            } catch (InterruptedException e){
-                log.error("InterruptedException: " + e.getMessage());
-            }
-
-            return false;
-        }}.run();
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+        return statuses;
     }
 }
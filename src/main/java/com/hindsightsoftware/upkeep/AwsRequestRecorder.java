@@ -0,0 +1,55 @@
+package com.hindsightsoftware.upkeep;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+
+/**
+ * Records every AWS SDK request as a flight recorder event, with its operation, latency and retries.
+ */
+public class AwsRequestRecorder extends RequestHandler2 {
+    private static final HandlerContextKey<FlightEvents.AwsRequest> EVENT = new HandlerContextKey<FlightEvents.AwsRequest>("UpkeepFlightEvent");
+    private static final HandlerContextKey<Integer> ATTEMPTS = new HandlerContextKey<Integer>("UpkeepAttempts");
+
+    @Override
+    public void beforeRequest(Request<?> request){
+        String operation = request.getOriginalRequest().getClass().getSimpleName().replaceAll("Request$", "");
+        request.addHandlerContext(EVENT, FlightEvents.get().beginAwsRequest(request.getServiceName(), operation));
+        request.addHandlerContext(ATTEMPTS, 0);
+    }
+
+    @Override
+    public void beforeAttempt(HandlerBeforeAttemptContext context){
+        Request<?> request = context.getRequest();
+        Integer attempts = request.getHandlerContext(ATTEMPTS);
+        request.addHandlerContext(ATTEMPTS, attempts == null ? 1 : attempts + 1);
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response){
+        int statusCode = response != null && response.getHttpResponse() != null ? response.getHttpResponse().getStatusCode() : 0;
+        end(request, statusCode, null);
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e){
+        if(e instanceof AmazonServiceException){
+            AmazonServiceException ase = (AmazonServiceException)e;
+            end(request, ase.getStatusCode(), ase.getErrorCode());
+        } else {
+            int statusCode = response != null && response.getHttpResponse() != null ? response.getHttpResponse().getStatusCode() : 0;
+            end(request, statusCode, e.getClass().getSimpleName());
+        }
+    }
+
+    private void end(Request<?> request, int statusCode, String errorCode){
+        FlightEvents.AwsRequest event = request.getHandlerContext(EVENT);
+        if(event == null)return;
+
+        Integer attempts = request.getHandlerContext(ATTEMPTS);
+        event.end(statusCode, errorCode, attempts == null ? 0 : Math.max(0, attempts - 1));
+    }
+}
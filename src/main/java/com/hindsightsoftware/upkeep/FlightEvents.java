@@ -0,0 +1,101 @@
+package com.hindsightsoftware.upkeep;
+
+import java.util.regex.Pattern;
+
+/**
+ * Java Flight Recorder events of remote commands, uploads, SSH connections and AWS requests. Start a build with
+ * "-XX:StartFlightRecording" to record them. On JVMs without JFR every event is a no-op.
+ */
+public abstract class FlightEvents {
+    public interface Exec {
+        void end(int exitStatus, long outputBytes);
+    }
+
+    public interface Upload {
+        void end(boolean success);
+    }
+
+    public interface Connect {
+        void end(boolean success);
+    }
+
+    public interface AwsRequest {
+        void end(int statusCode, String errorCode, int retries);
+    }
+
+    private static final int MAX_COMMAND_LENGTH = 4096;
+
+    // Values of variables such as PGPASSWORD='...' or AWS_SECRET_ACCESS_KEY=...
+    private static final Pattern SECRETS = Pattern.compile(
+            "\\b([A-Za-z_]*(?:PASSWORD|PASSWD|SECRET|TOKEN)[A-Za-z_]*)=('[^']*'|\"[^\"]*\"|\\S+)", Pattern.CASE_INSENSITIVE);
+
+    private static final FlightEvents INSTANCE = create();
+
+    public static FlightEvents get(){
+        return INSTANCE;
+    }
+
+    /**
+     * @return the command with the values of password, secret and token variables replaced by "***"
+     */
+    public static String redact(String command){
+        if(command == null)return null;
+        return SECRETS.matcher(command).replaceAll("$1=***");
+    }
+
+    public abstract Exec beginExec(String host, String command);
+
+    public abstract Upload beginUpload(String host, String file, long bytes);
+
+    /**
+     * @param via the bastion the connection is tunnelled through, or null for a direct connection
+     */
+    public abstract Connect beginConnect(String host, String via);
+
+    public abstract AwsRequest beginAwsRequest(String service, String operation);
+
+    protected static String truncate(String command){
+        String redacted = redact(command);
+        return redacted.length() > MAX_COMMAND_LENGTH ? redacted.substring(0, MAX_COMMAND_LENGTH) + "..." : redacted;
+    }
+
+    // The JFR events are only loaded when the JVM has a flight recorder, so this class never links to jdk.jfr
+    private static FlightEvents create(){
+        try {
+            Class<?> recorder = Class.forName("jdk.jfr.FlightRecorder");
+            if(Boolean.TRUE.equals(recorder.getMethod("isAvailable").invoke(null))){
+                return (FlightEvents)Class.forName("com.hindsightsoftware.upkeep.JfrFlightEvents").getDeclaredConstructor().newInstance();
+            }
+        } catch (Exception | LinkageError e){
+            // No flight recorder
+        }
+        return new Disabled();
+    }
+
+    private static class Disabled extends FlightEvents {
+        private static final Exec EXEC = (exitStatus, outputBytes) -> {};
+        private static final Upload UPLOAD = success -> {};
+        private static final Connect CONNECT = success -> {};
+        private static final AwsRequest AWS_REQUEST = (statusCode, errorCode, retries) -> {};
+
+        @Override
+        public Exec beginExec(String host, String command){
+            return EXEC;
+        }
+
+        @Override
+        public Upload beginUpload(String host, String file, long bytes){
+            return UPLOAD;
+        }
+
+        @Override
+        public Connect beginConnect(String host, String via){
+            return CONNECT;
+        }
+
+        @Override
+        public AwsRequest beginAwsRequest(String service, String operation){
+            return AWS_REQUEST;
+        }
+    }
+}
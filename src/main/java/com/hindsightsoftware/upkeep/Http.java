@@ -1,65 +1,120 @@
 package com.hindsightsoftware.upkeep;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP client of one mojo execution. All requests share one pooled client that keeps connections alive,
+ * so repeated probes of the same host reuse the TCP/TLS connection.
+ */
+public class Http implements Closeable {
+    private static final int IDLE_CONNECTION_TIMEOUT = 30;
 
-public class Http {
     public enum Method {
         POST,
         GET
     }
 
-    public static class Response {
-        private final HttpResponse response;
+    /**
+     * A response streams its body. It must be closed, which releases the connection back to the pool.
+     */
+    public static class Response implements Closeable {
+        private final CloseableHttpResponse response;
         private final HttpEntity entity;
 
-        public Response(HttpResponse response){
+        public Response(CloseableHttpResponse response){
             this.response = response;
             this.entity = response.getEntity();
         }
 
         public String getBody() throws IOException {
-            InputStream inputStream = entity.getContent();
+            if(entity == null)return "";
 
             final StringBuilder out = new StringBuilder();
-            Reader in = new InputStreamReader(inputStream, "UTF-8");
-            char buffer[] = new char[1024];
-            try {
-                while(inputStream.available() > 0){
-                    int len = in.read(buffer, 0, 1024);
-                    if(len <= 0)break;
+            char buffer[] = new char[8192];
+            try (Reader in = new InputStreamReader(entity.getContent(), getCharset())) {
+                int len;
+                while((len = in.read(buffer, 0, buffer.length)) >= 0){
                     out.append(buffer, 0, len);
                 }
                 return out.toString();
-            } finally {
-                inputStream.close();
+            }
+        }
+
+        /**
+         * Scans the body as it streams in and stops at the first match, without buffering the whole body.
+         * @return the first of the needles found in the body, or null if none was found
+         */
+        public String find(String... needles) throws IOException {
+            if(entity == null)return null;
+
+            int longest = 1;
+            for(String needle : needles){
+                longest = Math.max(longest, needle.length());
+            }
+
+            // Only the tail that may hold the start of a match is kept between two reads
+            final StringBuilder window = new StringBuilder();
+            char buffer[] = new char[8192];
+            try (Reader in = new InputStreamReader(entity.getContent(), getCharset())) {
+                int len;
+                while((len = in.read(buffer, 0, buffer.length)) >= 0){
+                    window.append(buffer, 0, len);
+                    for(String needle : needles){
+                        if(window.indexOf(needle) >= 0)return needle;
+                    }
+                    if(window.length() >= longest){
+                        window.delete(0, window.length() - (longest - 1));
+                    }
+                }
+                return null;
             }
         }
 
         public int getStatusCode() {
             return response.getStatusLine().getStatusCode();
         }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                // Drain what is left so that the connection can be kept alive
+                EntityUtils.consumeQuietly(entity);
+            } finally {
+                response.close();
+            }
+        }
+
+        private Charset getCharset(){
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            return charset != null ? charset : StandardCharsets.UTF_8;
+        }
     }
 
-    public static class Request {
+    public class Request {
         private Method method;
         private HttpRequestBase httpRequest;
-        private HttpClient httpClient;
 
         public Request(Method method, String uri) throws IllegalArgumentException {
             this.method = method;
-            this.httpClient = HttpClients.createDefault();
             switch(method){
                 case POST:
                     this.httpRequest = new HttpPost(uri);
@@ -98,11 +153,31 @@ public class Http {
         }
     }
 
-    public static Request POST(String uri){
+    private final CloseableHttpClient httpClient;
+
+    public Http(int maxConnections, int maxConnectionsPerRoute){
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public Request POST(String uri){
         return new Request(Method.POST, uri);
     }
 
-    public static Request GET(String uri){
+    public Request GET(String uri){
         return new Request(Method.GET, uri);
     }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
 }
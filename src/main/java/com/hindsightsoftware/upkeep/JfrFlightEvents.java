@@ -0,0 +1,157 @@
+package com.hindsightsoftware.upkeep;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder events, only loaded by {@link FlightEvents} when the JVM supports JFR.
+ */
+class JfrFlightEvents extends FlightEvents {
+    @Name("com.hindsightsoftware.upkeep.Exec")
+    @Label("Remote Command")
+    @Category({ "Upkeep", "SSH" })
+    static class ExecEvent extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Command")
+        @Description("Command with secrets redacted")
+        String command;
+
+        @Label("Exit Status")
+        int exitStatus;
+
+        @Label("Output")
+        @DataAmount
+        long outputBytes;
+    }
+
+    @Name("com.hindsightsoftware.upkeep.Upload")
+    @Label("SFTP Upload")
+    @Category({ "Upkeep", "SSH" })
+    static class UploadEvent extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("File")
+        String file;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Throughput")
+        @DataAmount
+        @Frequency
+        long throughput;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("com.hindsightsoftware.upkeep.Connect")
+    @Label("SSH Connect")
+    @Category({ "Upkeep", "SSH" })
+    static class ConnectEvent extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Via")
+        @Description("Bastion the connection is tunnelled through")
+        String via;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("com.hindsightsoftware.upkeep.AwsRequest")
+    @Label("AWS Request")
+    @Category({ "Upkeep", "AWS" })
+    static class AwsRequestEvent extends Event {
+        @Label("Service")
+        String service;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Status Code")
+        int statusCode;
+
+        @Label("Error Code")
+        String errorCode;
+
+        @Label("Retries")
+        int retries;
+    }
+
+    @Override
+    public Exec beginExec(String host, String command){
+        ExecEvent event = new ExecEvent();
+        if(!event.isEnabled())return (exitStatus, outputBytes) -> {};
+
+        event.host = host;
+        event.command = truncate(command);
+        event.begin();
+        return (exitStatus, outputBytes) -> {
+            event.end();
+            event.exitStatus = exitStatus;
+            event.outputBytes = outputBytes;
+            event.commit();
+        };
+    }
+
+    @Override
+    public Upload beginUpload(String host, String file, long bytes){
+        UploadEvent event = new UploadEvent();
+        if(!event.isEnabled())return success -> {};
+
+        event.host = host;
+        event.file = file;
+        event.bytes = bytes;
+        long start = System.nanoTime();
+        event.begin();
+        return success -> {
+            event.end();
+            event.success = success;
+            event.throughput = (long)(bytes * 1e9 / Math.max(1, System.nanoTime() - start));
+            event.commit();
+        };
+    }
+
+    @Override
+    public Connect beginConnect(String host, String via){
+        ConnectEvent event = new ConnectEvent();
+        if(!event.isEnabled())return success -> {};
+
+        event.host = host;
+        event.via = via;
+        event.begin();
+        return success -> {
+            event.end();
+            event.success = success;
+            event.commit();
+        };
+    }
+
+    @Override
+    public AwsRequest beginAwsRequest(String service, String operation){
+        AwsRequestEvent event = new AwsRequestEvent();
+        if(!event.isEnabled())return (statusCode, errorCode, retries) -> {};
+
+        event.service = service;
+        event.operation = operation;
+        event.begin();
+        return (statusCode, errorCode, retries) -> {
+            event.end();
+            event.statusCode = statusCode;
+            event.errorCode = errorCode;
+            event.retries = retries;
+            event.commit();
+        };
+    }
+}
@@ -3,10 +3,61 @@ package com.hindsightsoftware.upkeep;
 import org.apache.maven.plugin.logging.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class JiraRestoreUtils {
+    // Used when neither the node nor the database size is known
+    private static final int DEFAULT_RESTORE_JOBS = 4;
+
+    // Concurrent S3 requests of "aws s3 sync" when downloading a directory dump
+    private static final int S3_SYNC_CONCURRENCY = 32;
+
+    // Records which backup the database has been restored from
+    private static final String RESTORE_MARKER_SCHEMA = "upkeep";
+    private static final String RESTORE_MARKER_TABLE = RESTORE_MARKER_SCHEMA + ".restore_marker";
+
+    private static final String JIRA_PATH = "/opt/atlassian/jira";
+    private static final String JIRA_HOME = "/var/atlassian/application-data/jira";
+    private static final String STOP_SUMMARY = "##upkeep-stop##";
+    private static final String STARTUP_SUMMARY = "##upkeep-startup##";
+
+    // Startup phases logged by JIRA, as extended regular expressions
+    private static final Map<String, String> STARTUP_PHASES = new LinkedHashMap<String, String>();
+    static {
+        STARTUP_PHASES.put("plugin system early startup begun", "Plugin system earlyStartup begun");
+        STARTUP_PHASES.put("plugin system early startup ended", "Plugin system earlyStartup ended");
+        STARTUP_PHASES.put("index recovery begun", "[Ii]ndex recovery|[Rr]ecovering .*index");
+        STARTUP_PHASES.put("Tomcat started", "Server startup in");
+        STARTUP_PHASES.put("plugin system late startup begun", "Plugin system lateStartup begun");
+        STARTUP_PHASES.put("plugin system late startup ended", "Plugin system lateStartup ended");
+    }
+    // Seconds to wait for the process to disappear after SIGKILL
+    private static final int KILL_TIMEOUT = 10;
+
+    private static final String INDEXES_PATH = JIRA_HOME + "/caches/indexes";
+    private static final String INDEXES_SUMMARY = "##upkeep-indexes##";
+
+    /**
+     * @param format "custom", "directory" or "auto", which picks "directory" when the name ends with "/"
+     * @return true if the dump is a directory created by "pg_dump -Fd"
+     */
+    public static boolean isDirectoryDump(String format, String psqlFileName){
+        switch(format.toLowerCase()){
+            case "directory":
+                return true;
+            case "custom":
+                return false;
+            case "auto":
+                return psqlFileName.endsWith("/");
+            default:
+                throw new IllegalArgumentException("Unknown Postgres SQL backup format: " + format);
+        }
+    }
     public static boolean uploadCredentials(SecuredShellClient ssh, String s3AwsCredentials, String s3AwsConfig){
         List<SecuredShellClient.FilePair> files = Arrays.asList(
                 new SecuredShellClient.FilePair(s3AwsCredentials, ".aws/"),
@@ -16,34 +67,255 @@ public class JiraRestoreUtils {
         return ssh.execute("mkdir -p .aws") == 0 && ssh.uploadFile(files);
     }
 
-    public static boolean getPsqlFromBucket(SecuredShellClient ssh, String bucketName, String psqlFileName){
-        return ssh.execute("aws s3 cp s3://" + bucketName + "/" + psqlFileName + " .") == 0;
+    public static boolean getPsqlFromBucket(SecuredShellClient ssh, String bucketName, String psqlFileName, boolean directory){
+        if(!directory){
+            return ssh.execute("aws s3 cp s3://" + bucketName + "/" + psqlFileName + " .") == 0;
+        }
+
+        // Only files that changed since the last restore are downloaded, many of them at the same time.
+        // The concurrency is set on a copy of the uploaded config, so that the config is not uploaded again next time.
+        String path = localPath(psqlFileName);
+        return ssh.execute("export AWS_CONFIG_FILE=$HOME/.aws/config.sync" +
+                " && (cp $HOME/.aws/config $AWS_CONFIG_FILE 2> /dev/null || true)" +
+                " && aws configure set default.s3.max_concurrent_requests " + S3_SYNC_CONCURRENCY +
+                " && aws s3 sync --only-show-errors --delete s3://" + bucketName + "/" + path + "/ \"" + path + "/\"") == 0;
+    }
+
+    /**
+     * Number of parallel pg_restore jobs: one per vCPU of the restoring node, but no more than the database has.
+     * @param knownNodeVCpus vCPUs of the restoring node as reported by EC2, 0 to ask the node with nproc
+     * @param databaseVCpus vCPUs of the database instance, -1 if not known
+     */
+    public static int getRestoreJobs(Log log, SecuredShellClient ssh, int knownNodeVCpus, int databaseVCpus){
+        final int[] nodeVCpus = new int[]{ knownNodeVCpus };
+        if(nodeVCpus[0] <= 0){
+            // The instance did not report its CPU options
+            nodeVCpus[0] = -1;
+            ssh.execute("nproc", line -> {
+                try {
+                    nodeVCpus[0] = Integer.parseInt(line.trim());
+                } catch (NumberFormatException e){
+                    // Not the output of nproc
+                }
+            });
+        }
+
+        int jobs;
+        if(nodeVCpus[0] > 0 && databaseVCpus > 0){
+            jobs = Math.min(nodeVCpus[0], databaseVCpus);
+        } else if(nodeVCpus[0] > 0 || databaseVCpus > 0){
+            jobs = Math.max(nodeVCpus[0], databaseVCpus);
+        } else {
+            jobs = DEFAULT_RESTORE_JOBS;
+        }
+
+        log.info("Using " + jobs + " parallel restore jobs (node vCPUs: " + nodeVCpus[0] + ", database vCPUs: " + databaseVCpus + ")");
+        return jobs;
+    }
+
+    /**
+     * Fingerprint of the backup in the bucket: its S3 ETag, or a hash of the keys and ETags of all files of a
+     * directory dump. It changes whenever the backup is uploaded again with different content.
+     * @return the fingerprint, or null if it could not be read
+     */
+    public static String getDumpFingerprint(SecuredShellClient ssh, String bucketName, String psqlFileName, boolean directory){
+        String path = localPath(psqlFileName);
+        String command;
+        if(directory){
+            command = "set -o pipefail; aws s3api list-objects-v2 --bucket " + bucketName + " --prefix \"" + path + "/\"" +
+                    " --query \"Contents[].[Key,ETag]\" --output text 2> /dev/null | sha256sum";
+        } else {
+            command = "aws s3api head-object --bucket " + bucketName + " --key \"" + path + "\" --query ETag --output text 2> /dev/null";
+        }
+
+        final StringBuilder value = new StringBuilder();
+        if(ssh.execute(command, line -> {
+            if(value.length() == 0 && !line.trim().isEmpty())value.append(line.trim().split("\\s+")[0]);
+        }) != 0 || value.length() == 0){
+            return null;
+        }
+
+        // Only characters that are safe within both the SQL literal and the shell command
+        return ("s3://" + bucketName + "/" + psqlFileName + "#" + value).replaceAll("[^A-Za-z0-9/:#._-]", "_");
+    }
+
+    /**
+     * @return the fingerprint of the backup the database has been restored from, or null if there is none
+     */
+    public static String getRestoreMarker(SecuredShellClient ssh, String endpoint, String password){
+        final StringBuilder value = new StringBuilder();
+        if(ssh.execute("PGPASSWORD=\'" + password + "\' psql -h " + endpoint + " -p 5432 -U postgres -d jira -tA -c \"SELECT fingerprint FROM " + RESTORE_MARKER_TABLE + "\" 2> /dev/null", line -> {
+            if(value.length() == 0)value.append(line.trim());
+        }) != 0 || value.length() == 0){
+            return null;
+        }
+        return value.toString();
+    }
+
+    /**
+     * Records the fingerprint of the backup the database has just been restored from. The marker lives in its own
+     * schema, which is not part of the "public" schema that is restored.
+     */
+    public static boolean setRestoreMarker(SecuredShellClient ssh, String endpoint, String password, String fingerprint){
+        return ssh.execute("PGPASSWORD=\'" + password + "\' psql -h " + endpoint + " -p 5432 -U postgres -d jira -v ON_ERROR_STOP=1 -c \"" +
+                "CREATE SCHEMA IF NOT EXISTS " + RESTORE_MARKER_SCHEMA + "; " +
+                "CREATE TABLE IF NOT EXISTS " + RESTORE_MARKER_TABLE + " (fingerprint text NOT NULL, restored_at timestamptz NOT NULL DEFAULT now()); " +
+                "DELETE FROM " + RESTORE_MARKER_TABLE + "; " +
+                "INSERT INTO " + RESTORE_MARKER_TABLE + " (fingerprint) VALUES (\'" + fingerprint + "\');\"") == 0;
     }
 
-    public static boolean stopJira(SecuredShellClient ssh){
-        List<String> commands = Arrays.asList(
-                // Stop
-                "(sudo /opt/atlassian/jira/bin/shutdown.sh > /dev/null 2>&1 || true)",
+    /**
+     * Stops JIRA and waits until its Catalina process has exited. A graceful shutdown is requested first, the process
+     * is sent SIGTERM once the graceful timeout has passed and SIGKILL once the terminate timeout has passed as well.
+     * Only the node's own process is tracked, so all nodes can be stopped at the same time.
+     * @param gracefulTimeout seconds to wait after the shutdown has been requested
+     * @param termTimeout seconds to wait after SIGTERM has been sent
+     */
+    public static boolean stopJira(Log log, SecuredShellClient ssh, int gracefulTimeout, int termTimeout){
+        String script = String.join("\n",
+                // A zombie has already exited
+                "alive() { [ -n \"$pid\" ] && [ -d /proc/$pid ] && ! grep -qs '^State:[[:space:]]*Z' /proc/$pid/status; }",
+
+                // The PID file may be missing or stale, fall back to the Catalina process.
+                // The bracket keeps the pattern from matching this script itself.
+                "pid=$(sudo cat " + JIRA_PATH + "/work/catalina.pid 2> /dev/null)",
+                "if ! alive; then pid=$(pgrep -f '[o]rg.apache.catalina.startup.Bootstrap' | head -n 1); fi",
+                "if ! alive; then echo \"" + STOP_SUMMARY + " not-running\"; exit 0; fi",
+
+                // Polls the exact PID every 200 ms until it is gone or the deadline in seconds is reached
+                "wait_for_exit() {",
+                "  local deadline=$(( $(date +%s%N) / 1000000 + $1 * 1000 ))",
+                "  while alive; do",
+                "    [ $(( $(date +%s%N) / 1000000 )) -ge $deadline ] && return 1",
+                "    sleep 0.2",
+                "  done",
+                "}",
+
+                "echo \"Stopping JIRA process $pid...\"",
+                "sudo " + JIRA_PATH + "/bin/shutdown.sh > /dev/null 2>&1",
+                "if wait_for_exit " + gracefulTimeout + "; then echo \"" + STOP_SUMMARY + " graceful\"; exit 0; fi",
 
-                // Wait until is down
-                "while pgrep -u root java > /dev/null; do echo \'Waiting for JIRA to shutdown...\' & sleep 10 & (sudo /opt/atlassian/jira/bin/shutdown.sh > /dev/null 2>&1 || true); done; echo \'JIRA is down.\'"
+                "echo \"JIRA did not stop within " + gracefulTimeout + " seconds, sending SIGTERM to $pid\"",
+                "sudo kill -TERM $pid 2> /dev/null",
+                "if wait_for_exit " + termTimeout + "; then echo \"" + STOP_SUMMARY + " terminated\"; exit 0; fi",
+
+                "echo \"JIRA did not terminate within " + termTimeout + " seconds, sending SIGKILL to $pid\"",
+                "sudo kill -KILL $pid 2> /dev/null",
+                "if wait_for_exit " + KILL_TIMEOUT + "; then echo \"" + STOP_SUMMARY + " killed\"; exit 0; fi",
+
+                "echo \"JIRA process $pid could not be killed!\"",
+                "exit 1"
         );
 
-        return ssh.execute(commands) == 0;
+        final String[] outcome = new String[]{ "unknown" };
+        long start = System.nanoTime();
+        int exitStatus = ssh.execute(script, line -> {
+            if(line.startsWith(STOP_SUMMARY)){
+                outcome[0] = line.substring(STOP_SUMMARY.length()).trim();
+            } else {
+                log.info(line);
+            }
+        });
+        if(exitStatus != 0){
+            return false;
+        }
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if(outcome[0].equals("not-running")){
+            log.info("JIRA on " + ssh.getHost() + " is not running");
+        } else {
+            log.info(String.format("JIRA on %s stopped (%s) in %.1f s", ssh.getHost(), outcome[0], millis / 1000.0));
+        }
+        return true;
     }
 
-    public static boolean startJira(SecuredShellClient ssh){
-        List<String> commands = Arrays.asList(
-                // Sometimes JIRA complains about this...
-                //"sudo rm -f /opt/atlassian/jira/work/catalina.pid",
+    /**
+     * Starts JIRA and follows its logs until the started pattern or the fatal pattern appears, the JIRA process
+     * exits or the timeout is reached. The patterns are extended regular expressions, matched with bash "=~".
+     * @param phases filled with the startup phases found in the logs, mapped to the milliseconds since the start
+     * @return true once the started pattern has been logged
+     */
+    public static boolean startJira(Log log, SecuredShellClient ssh, String startedPattern, String fatalPattern,
+                                    int timeout, Map<String, Long> phases){
+        StringBuilder phasePatterns = new StringBuilder();
+        for(String pattern : STARTUP_PHASES.values()){
+            phasePatterns.append(' ').append(shellQuote(pattern));
+        }
+
+        String script = String.join("\n",
+                "fifo=$(mktemp -u) && mkfifo \"$fifo\" || exit 1",
+                // Opened for reading and writing, so that the writers below never block
+                "exec 3<> \"$fifo\"",
+
+                // Follow the logs from their current end, before JIRA starts writing to them
+                "sudo tail -q -n 0 -F " + JIRA_HOME + "/log/atlassian-jira.log " + JIRA_PATH + "/logs/catalina.out 2> /dev/null >&3 &",
+                "tailpid=$!",
 
                 // Start
-                "sudo su -c \"exec env USE_NOHUP=true /opt/atlassian/jira/bin/startup.sh > /dev/null\"; sleep 10",
+                "sudo su -c \"exec env USE_NOHUP=true " + JIRA_PATH + "/bin/startup.sh > /dev/null\"",
+
+                // Report when the JIRA process is gone
+                "( while sleep 1; do",
+                "    pid=$(sudo cat " + JIRA_PATH + "/work/catalina.pid 2> /dev/null)",
+                "    if [ -z \"$pid\" ] || [ ! -d /proc/$pid ]; then echo \"" + STARTUP_SUMMARY + " exited\"; break; fi",
+                "  done ) >&3 &",
+                "watchpid=$!",
 
-                // Check if PID is alive
-                "ps cax | grep $(sudo cat /opt/atlassian/jira/work/catalina.pid) || (echo \"No active JIRA PID found! JIRA did not start!\" & exit 1)"
+                // Every line is matched as it is logged, every phase is only reported the first time
+                "started=" + shellQuote(startedPattern),
+                "fatal=" + shellQuote(fatalPattern),
+                "phases=(" + phasePatterns + " )",
+                "seen=()",
+                "deadline=$(( SECONDS + " + timeout + " ))",
+                "rc=124",
+                "while remaining=$(( deadline - SECONDS )); [ $remaining -gt 0 ] && IFS= read -r -t $remaining line <&3; do",
+                "  if [ \"$line\" = \"" + STARTUP_SUMMARY + " exited\" ]; then echo \"$line\"; rc=3; break; fi",
+                "  for i in \"${!phases[@]}\"; do",
+                "    if [ -z \"${seen[$i]}\" ] && [[ $line =~ ${phases[$i]} ]]; then seen[$i]=1; echo \"" + STARTUP_SUMMARY + " phase $i\"; fi",
+                "  done",
+                "  if [[ $line =~ $fatal ]]; then echo \"" + STARTUP_SUMMARY + " fatal $line\"; rc=2; break; fi",
+                "  if [[ $line =~ $started ]]; then echo \"" + STARTUP_SUMMARY + " started\"; rc=0; break; fi",
+                "done",
+
+                "sudo kill $tailpid 2> /dev/null; kill $watchpid 2> /dev/null",
+                "exec 3>&-",
+                "rm -f \"$fifo\"",
+                "[ $rc -eq 124 ] && echo \"" + STARTUP_SUMMARY + " timeout\"",
+                "exit $rc"
         );
-        return ssh.execute(commands) == 0;
+
+        List<String> names = new ArrayList<String>(STARTUP_PHASES.keySet());
+        long start = System.nanoTime();
+        int exitStatus = ssh.execute(script, line -> {
+            if(!line.startsWith(STARTUP_SUMMARY)){
+                log.info(line);
+                return;
+            }
+
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            String[] parts = line.substring(STARTUP_SUMMARY.length()).trim().split(" ", 2);
+            switch(parts[0]){
+                case "phase":
+                    String name = names.get(Integer.parseInt(parts[1]));
+                    phases.put(name, millis);
+                    log.info(String.format("JIRA on %s: %s after %.1f s", ssh.getHost(), name, millis / 1000.0));
+                    break;
+                case "started":
+                    phases.put("started", millis);
+                    log.info(String.format("JIRA on %s started in %.1f s", ssh.getHost(), millis / 1000.0));
+                    break;
+                case "fatal":
+                    log.error("JIRA on " + ssh.getHost() + " failed to start: " + (parts.length > 1 ? parts[1] : ""));
+                    break;
+                case "exited":
+                    log.error("JIRA process on " + ssh.getHost() + " exited during startup");
+                    break;
+                case "timeout":
+                    log.error("JIRA on " + ssh.getHost() + " did not start within " + timeout + " seconds");
+                    break;
+            }
+        });
+        return exitStatus == 0;
     }
 
     public static boolean uploadSetenv(SecuredShellClient ssh, String setenvPath){
@@ -55,10 +327,11 @@ public class JiraRestoreUtils {
             return false;
         }
 
-        return ssh.execute("sudo mv /home/ec2-user/setenv.sh /opt/atlassian/jira/bin/setenv.sh") == 0;
+        // Copy rather than move, so an unchanged setenv.sh is not uploaded again next time
+        return ssh.execute("sudo cp /home/ec2-user/setenv.sh /opt/atlassian/jira/bin/setenv.sh") == 0;
     }
 
-    public static boolean restoreFromPsql(Log log, SecuredShellClient ssh, String endpoint, String password, String psqlFileName){
+    public static boolean restoreFromPsql(Log log, SecuredShellClient ssh, String endpoint, String password, String psqlFileName, int jobs){
         if(ssh.execute("PGPASSWORD=\'" + password + "\' createdb -h " + endpoint + " -p 5432 -U postgres jira") != 0){
             log.info("Database has been already created... Terminating all connections...");
 
@@ -78,23 +351,97 @@ public class JiraRestoreUtils {
             }
         }
 
-        // Restore data
-        return ssh.execute("PGPASSWORD=\'" + password + "\' pg_restore -j 4 -v -n public -h " + endpoint + " -p 5432 -U postgres -d jira \"" + psqlFileName + "\"") == 0;
+        // Size of the backup, to report the throughput
+        String path = localPath(psqlFileName);
+        final long[] bytes = new long[]{ -1 };
+        ssh.execute("du -sb \"" + path + "\"", line -> {
+            try {
+                bytes[0] = Long.parseLong(line.split("\\s+")[0]);
+            } catch (NumberFormatException e){
+                // Not the output of du
+            }
+        });
+
+        // Restore data, pg_restore detects whether it is a file or a directory
+        long start = System.nanoTime();
+        if(ssh.execute("PGPASSWORD=\'" + password + "\' pg_restore -j " + jobs + " -v -n public -h " + endpoint + " -p 5432 -U postgres -d jira \"" + path + "\"") != 0){
+            return false;
+        }
+
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if(bytes[0] >= 0){
+            double mib = bytes[0] / (1024.0 * 1024.0);
+            log.info(String.format("Restored %.1f MiB in %.1f s (%.1f MiB/s) with %d parallel jobs",
+                    mib, millis / 1000.0, mib * 1000.0 / millis, jobs));
+        } else {
+            log.info(String.format("Restored database in %.1f s with %d parallel jobs", millis / 1000.0, jobs));
+        }
+        return true;
+    }
+
+    private static String shellQuote(String value){
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    // Directory dumps are named with a trailing "/" in the bucket
+    private static String localPath(String psqlFileName){
+        return psqlFileName.endsWith("/") ? psqlFileName.substring(0, psqlFileName.length() - 1) : psqlFileName;
     }
 
-    public static boolean getIndexesFromBucket(SecuredShellClient ssh, String bucketName, String indexesFileName){
-        List<String> commands = Arrays.asList(
-                // Download xml/zip file from S3 bucket
-                "aws s3 cp s3://" + bucketName + "/" + indexesFileName + " .",
+    /**
+     * Streams the indexes tarball from the bucket straight into tar, without an intermediate file. Whether it is
+     * compressed with gzip, zstd or not at all is detected from its first bytes, and pigz is used when the node has it.
+     */
+    public static boolean getIndexesFromBucket(Log log, SecuredShellClient ssh, String bucketName, String indexesFileName){
+        String script = String.join("\n",
+                "set -o pipefail",
+                "dest=" + INDEXES_PATH,
+                "tmp=$(mktemp)",
 
-                // Copy to destination
-                "sudo tar -xzvf " + indexesFileName + " -C /var/atlassian/application-data/jira/caches/indexes",
+                // Detect the format from the magic bytes
+                "aws s3api get-object --bucket " + bucketName + " --key \"" + indexesFileName + "\" --range bytes=0-3 \"$tmp\" > /dev/null || { rm -f \"$tmp\"; exit 1; }",
+                "magic=$(od -An -tx1 -N4 \"$tmp\" | tr -d ' \\n')",
+                "case \"$magic\" in",
+                "  1f8b*) if command -v pigz > /dev/null; then decompress=\"pigz -dc\"; else decompress=\"gzip -dc\"; fi ;;",
+                "  28b52ffd) if command -v zstd > /dev/null; then decompress=\"zstd -dc\"; else echo \"zstd is not installed\"; rm -f \"$tmp\"; exit 1; fi ;;",
+                "  *) decompress=cat ;;",
+                "esac",
+                "echo \"Extracting indexes with: $decompress\"",
+
+                // Download, decompress and extract in one pipeline, only the count of files (not directories) and the totals come back
+                "files=$(aws s3 cp --only-show-errors s3://" + bucketName + "/" + indexesFileName + " - | $decompress | sudo tar -xv --totals -f - -C \"$dest\" 2> \"$tmp\" | awk '!/\\/$/ { n++ } END { print n + 0 }') || { cat \"$tmp\"; rm -f \"$tmp\"; exit 1; }",
+                "bytes=$(sed -n 's/^Total bytes read: \\([0-9]*\\).*/\\1/p' \"$tmp\")",
+                "rm -f \"$tmp\"",
+                "echo \"" + INDEXES_SUMMARY + " $files ${bytes:--1}\"",
 
                 // Make jira as owner of the extracted indexes
-                "sudo chown -R jira /var/atlassian/application-data/jira/caches/indexes/"
+                "sudo chown -R jira \"$dest/\""
         );
 
-        return ssh.execute(commands) == 0;
+        final long[] summary = new long[]{ -1, -1 };
+        long start = System.nanoTime();
+        int exitStatus = ssh.execute(script, line -> {
+            if(line.startsWith(INDEXES_SUMMARY)){
+                String[] parts = line.substring(INDEXES_SUMMARY.length()).trim().split("\\s+");
+                try {
+                    summary[0] = Long.parseLong(parts[0]);
+                    summary[1] = Long.parseLong(parts[1]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e){
+                    // Leave the summary unknown
+                }
+            } else {
+                log.info(line);
+            }
+        });
+        if(exitStatus != 0){
+            return false;
+        }
+
+        double seconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)) / 1000.0;
+        double mib = Math.max(0, summary[1]) / (1024.0 * 1024.0);
+        log.info(String.format("Restored indexes on %s: %d files, %.1f MiB in %.1f s (%.1f files/s, %.1f MiB/s)",
+                ssh.getHost(), summary[0], mib, seconds, Math.max(0, summary[0]) / seconds, mib / seconds));
+        return true;
     }
 
     private static boolean checkResponse(Log log, Http.Response response) throws IOException {
@@ -102,11 +449,11 @@ public class JiraRestoreUtils {
             return true;
         }
 
-        String body = response.getBody();
-        if(body.contains("Could not find file at this location")){
+        String match = response.find("Could not find file at this location", "JIRA has already been set up");
+        if("Could not find file at this location".equals(match)){
             log.error("Unable to restore JIRA, file not found");
         }
-        else if(body.contains("JIRA has already been set up")){
+        else if("JIRA has already been set up".equals(match)){
             log.error("JIRA has already been set up");
         }
         else {
@@ -116,23 +463,4 @@ public class JiraRestoreUtils {
 
         return false;
     }
-
-    public static boolean waitForJiraToBeAlive(SecuredShellClient ssh, Log log, int maxWaitTime){
-        return new TimeoutBlock(maxWaitTime, 10000) {@Override public boolean block(){
-            return ssh.execute("curl -sS --fail --connect-timeout 5 --max-time 5 -o /dev/null localhost:8080") == 0;
-        }}.run();
-    }
-
-    public static boolean waitForUrlToBeAlive(Log log, String host, int maxWaitTime){
-        return new TimeoutBlock(maxWaitTime, 10000) {@Override public boolean block() {
-            try {
-                Http.Response response = Http.GET(host).timeout(5).send();
-                log.info("GET \"" + host + "\" returned " + response.getStatusCode());
-                return response.getStatusCode() >= 200 && response.getStatusCode() < 500;
-            } catch (IOException e) {
-                log.info("GET \"" + host + "\" timeout");
-                return false;
-            }
-        }}.run();
-    }
 }
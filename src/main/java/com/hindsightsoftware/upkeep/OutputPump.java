@@ -0,0 +1,86 @@
+package com.hindsightsoftware.upkeep;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Reads a remote output stream with blocking reads and hands complete lines to a consumer.
+ * The read buffer and the line buffer are reused, so a string is only created once per line.
+ * Pumps that share a lock never call their consumers concurrently.
+ */
+public class OutputPump implements Runnable {
+    private final InputStream in;
+    private final Consumer<String> lines;
+    private final Object lock;
+    private final byte[] buffer = new byte[8192];
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    private long bytes = 0;
+    private IOException error;
+
+    public OutputPump(InputStream in, Consumer<String> lines, Object lock){
+        this.in = in;
+        this.lines = lines;
+        this.lock = lock;
+    }
+
+    @Override
+    public void run(){
+        try {
+            pump();
+        } catch (IOException e){
+            error = e;
+        }
+    }
+
+    /**
+     * Pumps the stream until it is closed by the remote side.
+     */
+    public void pump() throws IOException {
+        int read;
+        while((read = in.read(buffer, 0, buffer.length)) >= 0){
+            bytes += read;
+            for(int i = 0; i < read; i++){
+                byte b = buffer[i];
+                if(b == '\n'){
+                    flush();
+                } else {
+                    append(b);
+                }
+            }
+        }
+        if(lineLength > 0){
+            flush();
+        }
+    }
+
+    public long getBytes(){
+        return bytes;
+    }
+
+    public IOException getError(){
+        return error;
+    }
+
+    private void append(byte b){
+        if(lineLength == line.length){
+            line = Arrays.copyOf(line, line.length * 2);
+        }
+        line[lineLength++] = b;
+    }
+
+    private void flush(){
+        int length = lineLength;
+        if(length > 0 && line[length - 1] == '\r'){
+            length--;
+        }
+        String text = new String(line, 0, length, StandardCharsets.UTF_8);
+        lineLength = 0;
+        synchronized (lock) {
+            lines.accept(text);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.hindsightsoftware.upkeep;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs polling waits on a small shared scheduler. Every wait is a {@link CompletableFuture} that completes
+ * with true once the probe succeeds, with false once the timeout is reached, and exceptionally once the probe
+ * aborts or is interrupted. Cancelling the future stops the polling. The delay between polls grows
+ * exponentially with jitter up to a cap.
+ */
+public class PollScheduler implements AutoCloseable {
+    public interface Probe {
+        /**
+         * @return true once the awaited condition is met. Any exception other than
+         * {@link AbortException} is logged and the probe is tried again.
+         */
+        boolean poll() throws Exception;
+    }
+
+    /**
+     * Thrown by a probe when the awaited condition can never be met.
+     */
+    public static class AbortException extends Exception {
+        public AbortException(String message){
+            super(message);
+        }
+    }
+
+    public static class Backoff {
+        private static final double MULTIPLIER = 1.5;
+        private static final double JITTER = 0.2;
+
+        private final long delay;
+        private final long maxDelay;
+        private final double multiplier;
+        private final double jitter;
+        private final long timeout;
+
+        /**
+         * @param delay first delay between two polls in milliseconds
+         * @param maxDelay cap of the delay in milliseconds
+         * @param multiplier growth of the delay after every poll
+         * @param jitter random spread of every delay, 0.2 means +/- 20%
+         * @param timeout maximum wait time in milliseconds
+         */
+        public Backoff(long delay, long maxDelay, double multiplier, double jitter, long timeout){
+            this.delay = delay;
+            this.maxDelay = maxDelay;
+            this.multiplier = multiplier;
+            this.jitter = jitter;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Delay that grows by 50% after every poll, with +/- 20% jitter, and without a timeout.
+         */
+        public static Backoff exponential(long delay, long maxDelay){
+            return new Backoff(delay, maxDelay, MULTIPLIER, JITTER, 0);
+        }
+
+        public static Backoff fixed(long delay, long timeout){
+            return new Backoff(delay, delay, 1.0, 0.0, timeout);
+        }
+
+        public Backoff withTimeout(long timeout){
+            return new Backoff(delay, maxDelay, multiplier, jitter, timeout);
+        }
+
+        private long next(long delay){
+            return Math.min(maxDelay, (long)(delay * multiplier));
+        }
+
+        private long jittered(long delay){
+            if(jitter <= 0)return delay;
+            double factor = 1.0 + jitter * (ThreadLocalRandom.current().nextDouble() * 2.0 - 1.0);
+            return Math.max(0, (long)(delay * factor));
+        }
+    }
+
+    private class Poll implements Runnable {
+        private final String name;
+        private final Backoff backoff;
+        private final Probe probe;
+        private final long deadline;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+        private long delay;
+        private volatile ScheduledFuture<?> scheduled;
+
+        private final Timeline.Phase phase;
+
+        private Poll(String name, Backoff backoff, Probe probe){
+            this.name = name;
+            this.backoff = backoff;
+            this.probe = probe;
+            this.deadline = System.currentTimeMillis() + backoff.timeout;
+            this.delay = backoff.delay;
+            this.phase = timeline != null ? timeline.begin("wait/" + name) : null;
+
+            result.whenComplete((value, error) -> {
+                ScheduledFuture<?> next = scheduled;
+                if(next != null && result.isCancelled())next.cancel(true);
+
+                if(phase != null){
+                    if(result.isCancelled()){
+                        phase.end(Timeline.CANCELLED);
+                    } else if(error != null){
+                        phase.end(Timeline.FAILED);
+                    } else {
+                        phase.end(value ? Timeline.SUCCESS : Timeline.TIMEOUT);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run(){
+            if(result.isDone())return;
+
+            try {
+                if(probe.poll()){
+                    result.complete(true);
+                    return;
+                }
+            } catch (AbortException e){
+                log.error(name + ": " + e.getMessage());
+                result.completeExceptionally(e);
+                return;
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                result.completeExceptionally(e);
+                return;
+            } catch (Exception e){
+                log.warn(name + ": " + e.getMessage());
+            }
+
+            if(phase != null)phase.retry();
+
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0){
+                log.error("Maximum wait time of " + TimeUnit.MILLISECONDS.toSeconds(backoff.timeout) + " seconds reached while waiting for " + name + "!");
+                result.complete(false);
+                return;
+            }
+
+            schedule(Math.min(remaining, backoff.jittered(delay)));
+            delay = backoff.next(delay);
+        }
+
+        private void schedule(long millis){
+            if(result.isDone())return;
+            try {
+                scheduled = executor.schedule(this, millis, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e){
+                // The scheduler has been shut down
+                result.cancel(false);
+            }
+        }
+    }
+
+    private final Log log;
+    private final Backoff defaultBackoff;
+    private final ScheduledExecutorService executor;
+    private final Timeline timeline;
+
+    public PollScheduler(Log log, int threads, Backoff defaultBackoff){
+        this(log, threads, defaultBackoff, null);
+    }
+
+    /**
+     * @param timeline records every wait as a "wait/" phase, with the failed polls as retries
+     */
+    public PollScheduler(Log log, int threads, Backoff defaultBackoff, Timeline timeline){
+        this.log = log;
+        this.defaultBackoff = defaultBackoff;
+        this.timeline = timeline;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "upkeep-poll-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Polls with the default backoff until the probe succeeds or the timeout in seconds is reached.
+     * The first poll runs immediately.
+     */
+    public CompletableFuture<Boolean> poll(String name, long timeoutSeconds, Probe probe){
+        return poll(name, defaultBackoff.withTimeout(TimeUnit.SECONDS.toMillis(timeoutSeconds)), probe, 0);
+    }
+
+    public CompletableFuture<Boolean> poll(String name, Backoff backoff, Probe probe, long initialDelay){
+        Poll poll = new Poll(name, backoff, probe);
+        poll.schedule(initialDelay);
+        return poll.result;
+    }
+
+    @Override
+    public void close(){
+        executor.shutdownNow();
+    }
+}
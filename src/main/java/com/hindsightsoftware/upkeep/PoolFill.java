@@ -0,0 +1,97 @@
+package com.hindsightsoftware.upkeep;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates stacks ahead of the builds until the pool has the requested number of free stacks.
+ */
+@Mojo( name = "pool-fill" )
+public class PoolFill extends AbstractMojo {
+    @Parameter
+    private boolean skip = false;
+
+    @Parameter( property = "jira.cloudformation.template.url", defaultValue = "https://aws-quickstart.s3.amazonaws.com/quickstart-atlassian-jira/templates/quickstart-jira-dc-with-vpc.template.yaml" )
+    private String templateUrl;
+
+    @Parameter( property = "jira.cloudformation.stack.name", defaultValue = "JIRA-Data-Center" )
+    private String stackName;
+
+    @Parameter( property = "jira.cloudformation.region", defaultValue = "us-east-2" )
+    private String region;
+
+    @Parameter( property = "jira.cloudformation.aws.profile", defaultValue = "default" )
+    private String awsProfile;
+
+    @Parameter( property = "jira.cloudformation.aws.max.connections", defaultValue = "50" )
+    private Integer awsMaxConnections;
+
+    @Parameter( property = "jira.cloudformation.aws.endpoint", defaultValue = "" )
+    private String awsEndpoint;
+
+    @Parameter( property = "jira.cloudformation.onfailure", defaultValue = "DELETE" )
+    private String onFailure;
+
+    @Parameter
+    private Map<String, String> parameters;
+
+    @Parameter( property = "jira.cloudformation.max.wait.stack", defaultValue = "3600")
+    private Integer maxStackWait;
+
+    @Parameter( property = "jira.cloudformation.poll.delay", defaultValue = "5")
+    private Integer pollDelay;
+
+    @Parameter( property = "jira.cloudformation.poll.max.delay", defaultValue = "30")
+    private Integer pollMaxDelay;
+
+    @Parameter( property = "jira.cloudformation.pool.name", defaultValue = "" )
+    private String poolName;
+
+    @Parameter( property = "jira.cloudformation.pool.size", defaultValue = "2" )
+    private Integer poolSize;
+
+    @Parameter( property = "jira.cloudformation.pool.lease", defaultValue = "720" )
+    private Integer poolLease;
+
+    @Parameter( property = "jira.cloudformation.pool.table", defaultValue = "upkeep-pool" )
+    private String poolTable;
+
+    private Log log;
+
+    public void setLog(Log log){
+        this.log = new SystemStreamLog();
+    }
+
+    public void execute() throws MojoExecutionException {
+        if(skip)return;
+
+        if(poolName == null || poolName.length() == 0){
+            throw new MojoExecutionException("Missing jira.cloudformation.pool.name parameter!");
+        }
+        if(templateUrl.length() == 0){
+            throw new MojoExecutionException("Missing cloudformation.template parameter!");
+        }
+
+        AwsClientFactory clients = new AwsClientFactory(log, region, awsProfile, awsMaxConnections, awsEndpoint);
+        try (PollScheduler scheduler = new PollScheduler(log, 2, PollScheduler.Backoff.exponential(
+                TimeUnit.SECONDS.toMillis(pollDelay), TimeUnit.SECONDS.toMillis(pollMaxDelay)))) {
+            AwsCloudFormation cloudFormation = new AwsCloudFormation(log, clients, scheduler, maxStackWait);
+            StackPool pool = new StackPool(log, clients, cloudFormation, poolName, poolTable);
+
+            // New stacks are named after the stack name, which is then a prefix
+            if(!pool.fill(poolSize, TimeUnit.MINUTES.toMillis(poolLease), stackName, templateUrl, onFailure,
+                    parameters != null ? parameters : new HashMap<String, String>())){
+                throw new MojoExecutionException("Failed to fill pool " + poolName + "!");
+            }
+        }
+        log.info("Pool " + poolName + " has been filled");
+    }
+}
@@ -0,0 +1,147 @@
+package com.hindsightsoftware.upkeep;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Waits for the JIRA nodes to be ready. The load balancer instance health and the "/status" endpoint of every
+ * node are polled at the same time. A node is ready once it is "InService" and JIRA reports "RUNNING",
+ * or "FIRST_RUN" when no data has been restored.
+ * The gate opens as soon as the quorum of nodes is ready.
+ */
+public class ReadinessGate {
+    private static final String[] READY_STATES = { "\"RUNNING\"", "\"FIRST_RUN\"" };
+
+    private final Log log;
+    private final PollScheduler scheduler;
+    private final Http http;
+    private final AwsLoadBalancer loadBalancer;
+
+    public ReadinessGate(Log log, PollScheduler scheduler, Http http, AwsLoadBalancer loadBalancer){
+        this.log = log;
+        this.scheduler = scheduler;
+        this.http = http;
+        this.loadBalancer = loadBalancer;
+    }
+
+    /**
+     * @return the state of a JIRA node that is ready, or null if it is not ready or not reachable
+     */
+    public static String getReadyState(Http http, String statusUrl){
+        try (Http.Response response = http.GET(statusUrl).timeout(5).send()) {
+            if(response.getStatusCode() != 200)return null;
+            return response.find(READY_STATES);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param statusUrls node instance ID mapped to the URL of its JIRA status endpoint, or to null to rely on
+     *                   the load balancer health check only
+     * @param quorum number of nodes that need to be ready, 0 or less means all of them
+     * @param nodeRunning called with the instance ID of every node as soon as its status endpoint reports it is up
+     */
+    public CompletableFuture<Boolean> await(String loadBalancerId, Map<String, String> statusUrls, int quorum,
+                                            int maxLoadBalancerWait, int maxJiraWait, Consumer<String> nodeRunning){
+        int needed = quorum <= 0 ? statusUrls.size() : Math.min(quorum, statusUrls.size());
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> gate = new CompletableFuture<Boolean>();
+        int[] ready = new int[]{ 0 };
+        int[] finished = new int[]{ 0 };
+        List<CompletableFuture<Boolean>> polls = new ArrayList<CompletableFuture<Boolean>>();
+
+        // One health check request per tick covers all instances
+        Map<String, CompletableFuture<Boolean>> inService = new HashMap<String, CompletableFuture<Boolean>>();
+        for(String instanceId : statusUrls.keySet()){
+            inService.put(instanceId, new CompletableFuture<Boolean>());
+        }
+        CompletableFuture<Boolean> health = scheduler.poll("load balancer health check", maxLoadBalancerWait, () -> {
+            Map<String, String> statuses = loadBalancer.getHealthStatus(loadBalancerId);
+            if(statuses == null)return false;
+
+            for(Map.Entry<String, String> entry : statuses.entrySet()){
+                CompletableFuture<Boolean> instance = inService.get(entry.getKey());
+                if(instance != null && !instance.isDone() && entry.getValue().equals("InService")){
+                    log.info("Load balancer instance " + entry.getKey() + " is in service");
+                    instance.complete(true);
+                }
+            }
+            return inService.values().stream().allMatch(CompletableFuture::isDone);
+        });
+        health.whenComplete((value, error) -> {
+            // Instances that never became healthy will not be ready
+            for(CompletableFuture<Boolean> instance : inService.values()){
+                instance.complete(false);
+            }
+        });
+        polls.add(health);
+
+        for(Map.Entry<String, String> node : statusUrls.entrySet()){
+            String instanceId = node.getKey();
+            String url = node.getValue();
+
+            CompletableFuture<Boolean> running;
+            if(url == null){
+                log.warn("No status endpoint for node " + instanceId + ", relying on the load balancer health check");
+                running = CompletableFuture.completedFuture(true);
+            } else {
+                running = scheduler.poll("JIRA on node " + instanceId, maxJiraWait, () -> {
+                    String state = getReadyState(http, url);
+                    if(state != null){
+                        log.info("JIRA on node " + instanceId + " is " + state);
+                        nodeRunning.accept(instanceId);
+                        return true;
+                    }
+                    return false;
+                });
+                polls.add(running);
+            }
+
+            running.thenCombine(inService.get(instanceId), (a, b) -> a && b).whenComplete((nodeReady, error) -> {
+                synchronized (gate) {
+                    finished[0]++;
+                    if(error == null && nodeReady){
+                        ready[0]++;
+                        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        if(ready[0] == 1){
+                            log.info("First JIRA node ready after " + elapsed + " ms: " + instanceId);
+                        }
+                        if(ready[0] == statusUrls.size()){
+                            log.info("All " + ready[0] + " JIRA nodes ready after " + elapsed + " ms");
+                        }
+                        if(ready[0] == needed && !gate.isDone()){
+                            log.info("Quorum of " + needed + " out of " + statusUrls.size() + " JIRA nodes ready after " + elapsed + " ms");
+                            gate.complete(true);
+                        }
+                    } else {
+                        log.error("JIRA node " + instanceId + " did not become ready");
+                    }
+
+                    if(finished[0] - ready[0] > statusUrls.size() - needed && !gate.isDone()){
+                        gate.complete(false);
+                    }
+                }
+            });
+        }
+
+        // Stop polling once the wait is cancelled, nodes outside the quorum keep being polled until the scheduler stops
+        gate.whenComplete((value, error) -> {
+            if(gate.isCancelled()){
+                for(CompletableFuture<Boolean> poll : polls){
+                    poll.cancel(true);
+                }
+            }
+        });
+
+        return gate;
+    }
+}
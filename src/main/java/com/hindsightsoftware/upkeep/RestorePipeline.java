@@ -0,0 +1,147 @@
+package com.hindsightsoftware.upkeep;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs restore stages as a dependency graph on a bounded thread pool.
+ * A stage starts once all of its dependencies have completed. The first failing
+ * stage cancels every stage that has not finished yet.
+ */
+public class RestorePipeline implements AutoCloseable {
+    public interface Stage {
+        void run() throws Exception;
+    }
+
+    private final Log log;
+    private final ExecutorService executor;
+    private final List<CompletableFuture<Void>> stages = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final Timeline timeline;
+
+    public RestorePipeline(Log log, int threads){
+        this(log, threads, null);
+    }
+
+    /**
+     * @param timeline records every stage as a "restore/" phase of its node
+     */
+    public RestorePipeline(Log log, int threads, Timeline timeline){
+        this.log = log;
+        this.timeline = timeline;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "upkeep-restore-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param node the node the stage runs on, or null
+     */
+    public CompletableFuture<Void> submit(String name, String node, Stage stage, CompletableFuture<?>... dependencies){
+        CompletableFuture<Void> after = dependencies.length == 0
+                ? CompletableFuture.completedFuture(null)
+                : CompletableFuture.allOf(dependencies);
+
+        CompletableFuture<Void> future = after.thenRunAsync(() -> runStage(name, node, stage), executor);
+        stages.add(future);
+        return future;
+    }
+
+    public void await() throws MojoExecutionException {
+        CompletableFuture<?>[] all;
+        synchronized (stages) {
+            all = stages.toArray(new CompletableFuture<?>[0]);
+        }
+
+        try {
+            CompletableFuture.allOf(all).join();
+        } catch (CompletionException | CancellationException e){
+            // The cause is recorded by the failing stage
+        }
+
+        logTimings();
+
+        Throwable cause = failure.get();
+        if(cause instanceof MojoExecutionException){
+            throw (MojoExecutionException)cause;
+        } else if(cause != null){
+            throw new MojoExecutionException("Restore stage failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    @Override
+    public void close(){
+        executor.shutdownNow();
+        try {
+            if(!executor.awaitTermination(30, TimeUnit.SECONDS)){
+                log.warn("Some restore stages did not terminate in time");
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runStage(String stageName, String node, Stage stage){
+        String name = node != null ? stageName + " " + node : stageName;
+        if(failure.get() != null){
+            throw new CancellationException("Stage \"" + name + "\" cancelled");
+        }
+
+        log.info("Stage \"" + name + "\" started");
+        long start = System.nanoTime();
+        Timeline.Phase phase = timeline != null ? timeline.begin("restore/" + stageName, node) : null;
+        try {
+            stage.run();
+        } catch (Exception e){
+            if(phase != null)phase.end(failure.get() != null || e instanceof InterruptedException ? Timeline.CANCELLED : Timeline.FAILED);
+            if(failure.compareAndSet(null, e)){
+                log.error("Stage \"" + name + "\" failed: " + e.getMessage() + ", cancelling remaining stages");
+                cancelAll();
+            }
+            throw new CompletionException(e);
+        }
+        if(phase != null)phase.succeed();
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        timings.put(name, elapsed);
+        log.info("Stage \"" + name + "\" finished in " + elapsed + " ms");
+    }
+
+    private void cancelAll(){
+        synchronized (stages) {
+            for(CompletableFuture<Void> stage : stages){
+                stage.cancel(true);
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    private void logTimings(){
+        synchronized (timings) {
+            if(timings.isEmpty())return;
+            log.info("Restore stage timings:");
+            for(Map.Entry<String, Long> entry : timings.entrySet()){
+                log.info(String.format("    %1$-50s %2$8d ms", entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+}
@@ -1,8 +1,16 @@
 package com.hindsightsoftware.upkeep;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.function.IntSupplier;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import com.jcraft.jsch.*;
 import org.apache.maven.plugin.logging.Log;
@@ -17,98 +25,162 @@ public class SecuredShellClient {
         }
     }
 
+    private static final String STEP_MARKER = "##upkeep-step##";
+    private static final int SFTP_BULK_REQUESTS = 64;
+    private static final int UPLOAD_BUFFER_SIZE = 256 * 1024;
+
     private final Log log;
-    private final JSch jsch;
+    private final SshSessionPool pool;
     private final String host;
     private final String user;
-    private final int port = 22;
     private final String bastion;
 
-    public SecuredShellClient(Log log, String bastionIp, String host, String user, File keypairFilePath) throws JSchException {
+    public SecuredShellClient(Log log, SshSessionPool pool, String bastionIp, String host, String user) {
         this.log = log;
-        this.jsch = new JSch();
+        this.pool = pool;
         this.host = host;
         this.user = user;
-        this.jsch.addIdentity(keypairFilePath.getAbsolutePath());
         this.bastion = bastionIp;
     }
 
+    public String getHost(){
+        return host;
+    }
+
+    /**
+     * Executes the commands one after another as a single remote script over one channel.
+     * Execution stops at the first command that fails and its exit status is returned.
+     */
     public int execute(List<String> commands){
-        for(String command : commands){
-            int ret = execute(command);
-            if(ret != 0)return ret;
+        if(commands.isEmpty())return 0;
+
+        StringBuilder script = new StringBuilder();
+        for(int i = 0; i < commands.size(); i++){
+            log.info("SSH batch step " + (i + 1) + "/" + commands.size() + ": " + FlightEvents.redact(commands.get(i)));
+            // Every step runs in its own subshell, just like a separate exec would, and must not read the script
+            script.append("( ").append(commands.get(i)).append(" ) < /dev/null\n");
+            // The marker goes on a line of its own, even if the output of the step does not end with a newline
+            script.append("rc=$?; printf '\\n%s %d %d\\n' '").append(STEP_MARKER).append("' ").append(i + 1).append(" $rc; ");
+            script.append("[ $rc -eq 0 ] || exit $rc\n");
         }
-        return 0;
-    }
 
-    public boolean uploadFile(List<FilePair> files) {
-        try {
-            Session session = jsch.getSession(user, bastion, port);
-            java.util.Properties config = new java.util.Properties();
-            config.put("StrictHostKeyChecking", "no");
-            session.setConfig(config);
-            session.connect();
+        int[] failedStep = new int[]{ 0 };
+        // Every step is recorded as a command of its own, it ends when its marker arrives
+        int[] currentStep = new int[]{ 0 };
+        long[] stepBytes = new long[]{ 0 };
+        FlightEvents.Exec[] stepEvent = new FlightEvents.Exec[]{ FlightEvents.get().beginExec(host, commands.get(0)) };
+        // An empty line is held back until the next line shows whether it was printed before a marker
+        boolean[] heldEmptyLine = new boolean[]{ false };
+        Consumer<String> output = line -> {
+            boolean marker = line.startsWith(STEP_MARKER);
+            if(heldEmptyLine[0] && !marker){
+                log.info("");
+            }
+            heldEmptyLine[0] = line.isEmpty();
+            if(!marker){
+                stepBytes[0] += line.length() + 1;
+                if(!line.isEmpty()){
+                    log.info(line);
+                }
+                return;
+            }
+            String[] step = line.substring(STEP_MARKER.length()).trim().split(" ");
+            int exitStatus = Integer.parseInt(step[1]);
+            if(exitStatus != 0){
+                failedStep[0] = Integer.parseInt(step[0]);
+            }
 
-            // Forward the port
-            session.setPortForwardingL(2222, host, 22);
+            stepEvent[0].end(exitStatus, stepBytes[0]);
+            stepBytes[0] = 0;
+            if(++currentStep[0] < commands.size()){
+                stepEvent[0] = FlightEvents.get().beginExec(host, commands.get(currentStep[0]));
+            }
+        };
 
-            boolean ret = uploadFileForwarded(files);
-            session.disconnect();
-            return ret;
+        int status = execute("bash -s", new ByteArrayInputStream(script.toString().getBytes(StandardCharsets.UTF_8)), output);
+        if(currentStep[0] < commands.size() && failedStep[0] == 0){
+            // The batch ended before the step finished, e.g. because the connection dropped
+            stepEvent[0].end(status, stepBytes[0]);
+        }
+        if(failedStep[0] > 0){
+            log.error("SSH batch step " + failedStep[0] + "/" + commands.size() + " failed with status " + status + ": "
+                    + FlightEvents.redact(commands.get(failedStep[0] - 1)));
+        }
+        return status;
+    }
 
-        } catch (JSchException e) {
-            log.error("Error while connecting: " + e.getMessage());
-            e.printStackTrace();
-            return false;
+    public boolean uploadFile(List<FilePair> files) {
+        for(int attempt = 0; ; attempt++) {
+            try (SshSessionPool.Lease lease = pool.lease(bastion, host, user)) {
+                try {
+                    return uploadFileForwarded(lease.getSession(), files);
+                } catch (JSchException e) {
+                    // The pooled session has dropped, reconnect once and try again
+                    lease.invalidate();
+                    if (attempt > 0) throw e;
+                    log.warn("SSH session to " + host + " dropped, reconnecting...");
+                }
+            } catch (JSchException e) {
+                log.error("Error while connecting: " + e.getMessage());
+                e.printStackTrace();
+                return false;
+            }
         }
     }
 
     public int execute(String command){
-        try {
-            Session session = jsch.getSession(user, bastion, port);
-            java.util.Properties config = new java.util.Properties();
-            config.put("StrictHostKeyChecking", "no");
-            session.setConfig(config);
-            session.connect();
-
-            // Forward the port
-            session.setPortForwardingL(2222, host, 22);
+        return execute(command, log::info);
+    }
 
-            int ret = executeForwarded(command);
-            session.disconnect();
-            return ret;
+    /**
+     * Executes the command and hands every line of its stdout and stderr to the output consumer.
+     */
+    public int execute(String command, Consumer<String> output){
+        return execute(command, null, output);
+    }
 
-        } catch (JSchException e){
-            log.error("Error while connecting: " + e.getMessage());
-            e.printStackTrace();
-            return -1;
+    private int execute(String command, InputStream input, Consumer<String> output){
+        for(int attempt = 0; ; attempt++) {
+            try (SshSessionPool.Lease lease = pool.lease(bastion, host, user)) {
+                try {
+                    return executeForwarded(lease.getSession(), command, input, output);
+                } catch (JSchException e) {
+                    // The pooled session has dropped, reconnect once and try again
+                    lease.invalidate();
+                    if (attempt > 0) throw e;
+                    log.warn("SSH session to " + host + " dropped, reconnecting...");
+                }
+            } catch (JSchException e) {
+                log.error("Error while connecting: " + e.getMessage());
+                e.printStackTrace();
+                return -1;
+            }
         }
     }
 
-    private boolean uploadFileForwarded(List<FilePair> files) {
+    private boolean uploadFileForwarded(Session session, List<FilePair> files) throws JSchException {
         log.info("Uploading: " + files.size() + " files...");
-        try {
-            Session session = jsch.getSession(user, "localhost", 2222);
-            java.util.Properties config = new java.util.Properties();
-            config.put("StrictHostKeyChecking", "no");
-            session.setConfig(config);
-            session.connect();
-
-            try {
-                for (FilePair pair : files) {
-                    log.info("Uploading: " + pair.src + " -> " + pair.dst);
-                    Channel channel = session.openChannel("sftp");
-                    channel.connect();
-                    ChannelSftp channelSftp = (ChannelSftp) channel;
-                    channelSftp.cd(pair.dst);
+        ChannelSftp channelSftp = (ChannelSftp) session.openChannel("sftp");
+        channelSftp.setBulkRequests(SFTP_BULK_REQUESTS);
+        channelSftp.connect();
 
-                    File f1 = new File(pair.src);
-                    channelSftp.put(new FileInputStream(f1), f1.getName(), ChannelSftp.OVERWRITE);
+        try {
+            Set<FilePair> changed = findChangedFiles(session, channelSftp, files);
+            for (FilePair pair : files) {
+                if (!changed.contains(pair)) {
+                    log.info("Skipping unchanged: " + pair.src + " -> " + pair.dst);
+                    continue;
+                }
 
-                    channelSftp.disconnect();
+                log.info("Uploading: " + pair.src + " -> " + pair.dst);
+                FlightEvents.Upload event = FlightEvents.get().beginUpload(host, pair.src, new File(pair.src).length());
+                boolean uploaded = false;
+                try (InputStream in = new BufferedInputStream(new FileInputStream(pair.src), UPLOAD_BUFFER_SIZE)) {
+                    channelSftp.put(in, remotePath(pair), ChannelSftp.OVERWRITE);
+                    uploaded = true;
+                } finally {
+                    event.end(uploaded);
                 }
-            } finally {
-                session.disconnect();
             }
 
             return true;
@@ -116,73 +188,135 @@ public class SecuredShellClient {
             log.error("Error reading source file: " + e.getMessage());
             e.printStackTrace();
             return false;
-        } catch (SftpException e) {
-            log.error("Error while uploading files: " + e.getMessage());
+        } catch (IOException e) {
+            log.error("Error while reading source file: " + e.getMessage());
             e.printStackTrace();
             return false;
-        } catch (JSchException e) {
-            log.error("Error while connecting: " + e.getMessage());
+        } catch (SftpException e) {
+            log.error("Error while uploading files: " + e.getMessage());
             e.printStackTrace();
             return false;
+        } finally {
+            channelSftp.disconnect();
+        }
+    }
+
+    // Files whose remote copy is missing, differs in size or differs in SHA-256 hash
+    private Set<FilePair> findChangedFiles(Session session, ChannelSftp channelSftp, List<FilePair> files) throws JSchException, IOException {
+        Set<FilePair> changed = new HashSet<FilePair>();
+        Map<String, FilePair> sameSize = new LinkedHashMap<String, FilePair>();
+        for (FilePair pair : files) {
+            String remote = remotePath(pair);
+            try {
+                if (channelSftp.stat(remote).getSize() == new File(pair.src).length()) {
+                    sameSize.put(remote, pair);
+                    continue;
+                }
+            } catch (SftpException e) {
+                // The remote file does not exist yet
+            }
+            changed.add(pair);
+        }
+
+        if (sameSize.isEmpty()) {
+            return changed;
+        }
+
+        StringBuilder command = new StringBuilder("sha256sum");
+        for (String remote : sameSize.keySet()) {
+            command.append(" '").append(remote).append("'");
+        }
+
+        Map<String, String> remoteHashes = new HashMap<String, String>();
+        executeForwarded(session, command.toString(), null, line -> {
+            String[] parts = line.split("\\s+\\*?", 2);
+            if (parts.length == 2 && parts[0].length() == 64) {
+                remoteHashes.put(parts[1], parts[0]);
+            }
+        });
+
+        for (Map.Entry<String, FilePair> entry : sameSize.entrySet()) {
+            if (!sha256(entry.getValue().src).equals(remoteHashes.get(entry.getKey()))) {
+                changed.add(entry.getValue());
+            }
         }
+        return changed;
     }
 
-    private int executeForwarded(String command) {
+    private static String remotePath(FilePair pair) {
+        String name = new File(pair.src).getName();
+        return pair.dst.endsWith("/") ? pair.dst + name : pair.dst + "/" + name;
+    }
+
+    private static String sha256(String path) throws IOException {
+        MessageDigest digest;
         try {
-            Session session = jsch.getSession(user, "localhost", 2222);
-            java.util.Properties config = new java.util.Properties();
-            config.put("StrictHostKeyChecking", "no");
-            session.setConfig(config);
-            session.connect();
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
 
+    private int executeForwarded(Session session, String command, InputStream input, Consumer<String> output) throws JSchException {
+        try {
+            log.info("SSH exec: " + FlightEvents.redact(command));
+            FlightEvents.Exec event = FlightEvents.get().beginExec(host, command);
+            ChannelExec channelExec = (ChannelExec)session.openChannel("exec");
+            channelExec.setCommand(command);
+            channelExec.setInputStream(input);
+
+            Object lock = new Object();
+            OutputPump stdout = new OutputPump(channelExec.getInputStream(), output, lock);
+            OutputPump stderr = new OutputPump(channelExec.getErrStream(), output, lock);
+            int status = -1;
             try {
-                log.info("SSH exec: " + command);
-                ChannelExec channelExec = (ChannelExec)session.openChannel("exec");
-                channelExec.setCommand(command);
-                channelExec.setInputStream(null);
-                channelExec.setErrStream(System.err);
-
-                InputStream stdout = channelExec.getInputStream();
-                InputStream stderr = channelExec.getErrStream();
                 channelExec.connect();
 
-                byte[] tmp=new byte[1024];
-                while(true){
-                    while(stdout.available()>0){
-                        int i = stdout.read(tmp, 0, 1024);
-                        if(i < 0 )break;
-                        System.out.print(new String(tmp, 0, i));
-                    }
-                    while(stderr.available()>0){
-                        int i = stderr.read(tmp, 0, 1024);
-                        if(i < 0 )break;
-                        System.out.print(new String(tmp, 0, i));
-                    }
-                    if(channelExec.isClosed()){
-                        if(stdout.available() > 0 || stderr.available() > 0) continue;
-                        int status = channelExec.getExitStatus();
-                        log.info("Command returned status: " + status);
-                        channelExec.disconnect();
-                        return status;
-                    }
-                    try{
-                        Thread.sleep(250);
-                    } catch(Exception ee){
-                        log.error(ee);
-                    }
+                // stderr is pumped on its own thread while this thread blocks on stdout
+                Thread stderrThread = new Thread(stderr, "upkeep-ssh-stderr-" + host);
+                stderrThread.setDaemon(true);
+                stderrThread.start();
+
+                stdout.pump();
+                stderrThread.join();
+                if (stderr.getError() != null) throw stderr.getError();
+
+                // Both streams are closed. The exit status usually has arrived by now, otherwise it follows right
+                // before the channel close. JSch 0.1.54 has no notification for either, so this waits by polling.
+                while (channelExec.getExitStatus() == -1 && !channelExec.isClosed()) {
+                    Thread.sleep(5);
                 }
+
+                status = channelExec.getExitStatus();
+                log.info("Command returned status: " + status);
+                return status;
             } finally {
-                session.disconnect();
+                channelExec.disconnect();
+                event.end(status, stdout.getBytes() + stderr.getBytes());
             }
 
-        } catch (JSchException e){
-            log.error("Error while connecting: " + e.getMessage());
-            e.printStackTrace();
-            return -1;
         } catch (IOException e){
             log.error("Error while reading input stream: " + e.getMessage());
             e.printStackTrace();
             return -1;
+        } catch (InterruptedException e){
+            log.error("Interrupted while waiting for: " + command);
+            Thread.currentThread().interrupt();
+            return -1;
         }
     }
 }
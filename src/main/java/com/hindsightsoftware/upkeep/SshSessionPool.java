@@ -0,0 +1,163 @@
+package com.hindsightsoftware.upkeep;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.apache.maven.plugin.logging.Log;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps node sessions alive across commands. Sessions are keyed by (bastion, host, user),
+ * opened through the shared bastion connection of a {@link SshTunnelManager}, reconnected
+ * transparently once they drop and evicted after being idle for too long.
+ */
+public class SshSessionPool implements AutoCloseable {
+
+    /**
+     * A borrowed session. Closing the lease returns the session to the pool,
+     * it does not disconnect it.
+     */
+    public class Lease implements AutoCloseable {
+        private final Entry entry;
+        private final Session session;
+
+        private Lease(Entry entry, Session session){
+            this.entry = entry;
+            this.session = session;
+        }
+
+        public Session getSession(){
+            return session;
+        }
+
+        /**
+         * Drops the pooled session so that the next lease reconnects.
+         */
+        public void invalidate(){
+            entry.invalidate(session);
+        }
+
+        @Override
+        public void close(){
+            entry.release();
+        }
+    }
+
+    private static class Key {
+        private final String bastion;
+        private final String host;
+        private final String user;
+
+        private Key(String bastion, String host, String user){
+            this.bastion = bastion;
+            this.host = host;
+            this.user = user;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(this == o)return true;
+            if(!(o instanceof Key))return false;
+            Key key = (Key)o;
+            return bastion.equals(key.bastion) && host.equals(key.host) && user.equals(key.user);
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(bastion, host, user);
+        }
+
+        @Override
+        public String toString(){
+            return user + "@" + host + " via " + bastion;
+        }
+    }
+
+    private class Entry {
+        private final Key key;
+        private Session target;
+        private int leases;
+        private long lastUsed = System.currentTimeMillis();
+
+        private Entry(Key key){
+            this.key = key;
+        }
+
+        private synchronized Lease acquire() throws JSchException {
+            if(target == null || !target.isConnected()){
+                disconnect();
+                log.info("Connecting to " + key.host + " via bastion " + key.bastion + "...");
+                target = tunnels.openSession(key.bastion, key.host, key.user);
+            }
+            leases++;
+            lastUsed = System.currentTimeMillis();
+            return new Lease(this, target);
+        }
+
+        private synchronized void release(){
+            leases--;
+            lastUsed = System.currentTimeMillis();
+        }
+
+        private synchronized void invalidate(Session session){
+            if(target == session)disconnect();
+        }
+
+        private synchronized void evictIfIdle(long now){
+            if(target == null || leases > 0 || now - lastUsed < idleTimeout)return;
+            log.info("Closing idle SSH session to " + key);
+            disconnect();
+        }
+
+        private synchronized void disconnect(){
+            if(target != null)target.disconnect();
+            target = null;
+        }
+    }
+
+    private final Log log;
+    private final SshTunnelManager tunnels;
+    private final long idleTimeout;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    private final ScheduledExecutorService evictor;
+
+    public SshSessionPool(Log log, SshTunnelManager tunnels, long idleTimeoutSeconds) {
+        this.log = log;
+        this.tunnels = tunnels;
+        this.idleTimeout = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "upkeep-ssh-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long period = Math.max(1, idleTimeoutSeconds / 2);
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.SECONDS);
+    }
+
+    public Lease lease(String bastion, String host, String user) throws JSchException {
+        Key key = new Key(bastion, host, user);
+        return entries.computeIfAbsent(key, Entry::new).acquire();
+    }
+
+    @Override
+    public void close(){
+        evictor.shutdownNow();
+        for(Entry entry : entries.values()){
+            entry.disconnect();
+        }
+        entries.clear();
+    }
+
+    private void evictIdle(){
+        long now = System.currentTimeMillis();
+        for(Entry entry : entries.values()){
+            entry.evictIfIdle(now);
+        }
+    }
+}
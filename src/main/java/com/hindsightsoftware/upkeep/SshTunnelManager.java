@@ -0,0 +1,160 @@
+package com.hindsightsoftware.upkeep;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Opens one connection per bastion and reaches every private node through it.
+ * Node sessions are tunnelled over "direct-tcpip" channels of the bastion session, so no local
+ * port is bound for them. Ephemeral loopback ports are only forwarded when a plain socket is
+ * required, for example to reach a node's HTTP port.
+ */
+public class SshTunnelManager implements AutoCloseable {
+    private static final int SSH_PORT = 22;
+    private static final int KEEP_ALIVE_INTERVAL = 15000;
+    private static final int KEEP_ALIVE_COUNT_MAX = 3;
+
+    /**
+     * Carries an SSH session over a "direct-tcpip" channel of the bastion session.
+     */
+    private static class DirectTcpipProxy implements Proxy {
+        private final Session bastion;
+        private Channel channel;
+        private InputStream in;
+        private OutputStream out;
+
+        private DirectTcpipProxy(Session bastion){
+            this.bastion = bastion;
+        }
+
+        @Override
+        public void connect(SocketFactory socketFactory, String host, int port, int timeout) throws Exception {
+            channel = bastion.getStreamForwarder(host, port);
+            in = channel.getInputStream();
+            out = channel.getOutputStream();
+            channel.connect(timeout);
+        }
+
+        @Override
+        public InputStream getInputStream(){
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream(){
+            return out;
+        }
+
+        @Override
+        public Socket getSocket(){
+            return null;
+        }
+
+        @Override
+        public void close(){
+            if(channel != null)channel.disconnect();
+        }
+    }
+
+    private final Log log;
+    private final JSch jsch;
+    private final int port;
+    private final Map<String, Session> bastions = new HashMap<String, Session>();
+    private final Map<String, Integer> forwards = new HashMap<String, Integer>();
+
+    public SshTunnelManager(Log log, File keypairFilePath) throws JSchException {
+        this(log, keypairFilePath, SSH_PORT);
+    }
+
+    /**
+     * @param port SSH port of the bastion and of the private hosts
+     */
+    public SshTunnelManager(Log log, File keypairFilePath, int port) throws JSchException {
+        this.log = log;
+        this.port = port;
+        this.jsch = new JSch();
+        this.jsch.addIdentity(keypairFilePath.getAbsolutePath());
+    }
+
+    /**
+     * Opens a new session to a private host, tunnelled through the shared bastion session.
+     */
+    public Session openSession(String bastion, String host, String user) throws JSchException {
+        Session session = newSession(user, host, port);
+        session.setProxy(new DirectTcpipProxy(getBastion(bastion, user)));
+        connect(session, host, bastion);
+        return session;
+    }
+
+    /**
+     * Forwards an ephemeral loopback port to a port of a private host and returns the local port.
+     * The same port is returned for the same host and port until the bastion session has to reconnect.
+     */
+    public synchronized int forwardLocalPort(String bastion, String user, String host, int remotePort) throws JSchException {
+        Session session = getBastion(bastion, user);
+        String key = user + "@" + bastion + ">" + host + ":" + remotePort;
+        Integer localPort = forwards.get(key);
+        if(localPort == null){
+            localPort = session.setPortForwardingL("127.0.0.1", 0, host, remotePort);
+            forwards.put(key, localPort);
+            log.info("Forwarding 127.0.0.1:" + localPort + " to " + host + ":" + remotePort + " via bastion " + bastion);
+        }
+        return localPort;
+    }
+
+    @Override
+    public synchronized void close(){
+        for(Session session : bastions.values()){
+            session.disconnect();
+        }
+        bastions.clear();
+        forwards.clear();
+    }
+
+    private synchronized Session getBastion(String bastion, String user) throws JSchException {
+        String key = user + "@" + bastion;
+        Session session = bastions.get(key);
+        if(session == null || !session.isConnected()){
+            log.info("Connecting to bastion " + bastion + "...");
+            // Ports forwarded by a dropped session are gone with it
+            forwards.keySet().removeIf(forward -> forward.startsWith(key + ">"));
+            session = newSession(user, bastion, port);
+            connect(session, bastion, null);
+            bastions.put(key, session);
+        }
+        return session;
+    }
+
+    private void connect(Session session, String host, String via) throws JSchException {
+        FlightEvents.Connect event = FlightEvents.get().beginConnect(host, via);
+        boolean connected = false;
+        try {
+            session.connect();
+            connected = true;
+        } finally {
+            event.end(connected);
+        }
+    }
+
+    private Session newSession(String user, String host, int port) throws JSchException {
+        Session session = jsch.getSession(user, host, port);
+        java.util.Properties config = new java.util.Properties();
+        config.put("StrictHostKeyChecking", "no");
+        session.setConfig(config);
+        session.setServerAliveInterval(KEEP_ALIVE_INTERVAL);
+        session.setServerAliveCountMax(KEEP_ALIVE_COUNT_MAX);
+        return session;
+    }
+}
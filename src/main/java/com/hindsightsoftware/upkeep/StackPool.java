@@ -0,0 +1,393 @@
+package com.hindsightsoftware.upkeep;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.Tag;
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.util.TableUtils;
+import org.apache.maven.plugin.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of pre-provisioned stacks, which are found by their "upkeep:pool" tag. Claims are leases kept in a DynamoDB
+ * table with one item per stack. A build claims a stack with a conditional write that only succeeds if the stack is
+ * not claimed or its lease has expired, so two builds can never hold the same stack. Claiming and releasing a stack
+ * take one request each, the stack itself is not updated.
+ * A released stack has been used, so its database needs to be restored when it is claimed again.
+ */
+public class StackPool {
+    public static final String POOL_TAG = "upkeep:pool";
+
+    // Project properties through which the start goal hands its claim over to the stop goal
+    public static final String STACK_PROPERTY = "jira.cloudformation.pool.stack";
+    public static final String CLAIM_PROPERTY = "jira.cloudformation.pool.claim";
+
+    // Attributes of a lease item
+    private static final String STACK = "stack";
+    private static final String POOL = "pool";
+    private static final String CLAIM = "claim";
+    private static final String CLAIMED_AT = "claimedAt";
+    private static final String USED = "used";
+
+    private static final String CLAIM_CONDITION = "attribute_not_exists(#claim) OR #claimedAt < :expiry";
+
+    // Stacks that can be claimed
+    private static final Set<String> READY = new HashSet<String>(
+            Arrays.asList("CREATE_COMPLETE", "UPDATE_COMPLETE", "UPDATE_ROLLBACK_COMPLETE"));
+
+    public static class Claim {
+        public final String stackName;
+        public final String claimId;
+        // The stack has been used by an earlier build
+        public final boolean used;
+
+        public Claim(String stackName, String claimId, boolean used){
+            this.stackName = stackName;
+            this.claimId = claimId;
+            this.used = used;
+        }
+    }
+
+    // Lease of a stack as stored in the table, a stack without an item has never been claimed
+    private static class Lease {
+        private final String claimId;
+        private final long claimedAt;
+        private final boolean used;
+
+        private Lease(Map<String, AttributeValue> item){
+            this.claimId = item.containsKey(CLAIM) ? item.get(CLAIM).getS() : null;
+            this.claimedAt = item.containsKey(CLAIMED_AT) ? Long.parseLong(item.get(CLAIMED_AT).getN()) : 0;
+            this.used = item.containsKey(USED) && Boolean.TRUE.equals(item.get(USED).getBOOL());
+        }
+
+        private boolean isFree(long now, long leaseMillis){
+            return claimId == null || claimedAt < now - leaseMillis;
+        }
+    }
+
+    private final Log log;
+    private final AwsClientFactory clients;
+    private final AwsCloudFormation cloudFormation;
+    private final String name;
+    private final String table;
+
+    public StackPool(Log log, AwsClientFactory clients, AwsCloudFormation cloudFormation, String name, String table){
+        this.log = log;
+        this.clients = clients;
+        this.cloudFormation = cloudFormation;
+        this.name = name;
+        this.table = table;
+    }
+
+    /**
+     * Claims a free stack of the pool, or a stack whose lease has expired.
+     * @param leaseMillis time after which a claim expires
+     * @param allowUsed whether stacks used by earlier builds can be claimed
+     * @return the claim, or null if no stack could be claimed
+     */
+    public Claim claim(long leaseMillis, boolean allowUsed){
+        String claimId = UUID.randomUUID().toString();
+        long now = System.currentTimeMillis();
+
+        try {
+            if(!createTable())return null;
+
+            List<Stack> candidates = new ArrayList<Stack>();
+            Map<String, Lease> leases = new HashMap<String, Lease>();
+            for(Stack stack : getStacks()){
+                if(!READY.contains(stack.getStackStatus()))continue;
+                Lease lease = getLease(stack.getStackName());
+                if(!lease.isFree(now, leaseMillis))continue;
+                if(lease.used && !allowUsed){
+                    log.info("Skipping stack " + stack.getStackName() + ", it has been used and its database will not be restored");
+                    continue;
+                }
+                candidates.add(stack);
+                leases.put(stack.getStackName(), lease);
+            }
+            log.info("Found " + candidates.size() + " free stacks in pool " + name);
+
+            // Stacks that have never been claimed before expired claims, the oldest first
+            candidates.sort(Comparator.comparing((Stack stack) -> leases.get(stack.getStackName()).claimId != null)
+                    .thenComparing(Stack::getCreationTime));
+
+            for(Stack stack : candidates){
+                String stackName = stack.getStackName();
+                Lease lease = leases.get(stackName);
+                if(lease.claimId != null){
+                    log.warn("Claim " + lease.claimId + " of stack " + stackName + " has expired");
+                }
+
+                long start = System.nanoTime();
+                Map<String, AttributeValue> previous = putClaim(stackName, claimId, now, CLAIM_CONDITION,
+                        Collections.singletonMap(":expiry", number(now - leaseMillis)));
+                if(previous == null){
+                    log.info("Stack " + stackName + " has been claimed by another build");
+                    continue;
+                }
+                log.info("Claimed stack " + stackName + " of pool " + name + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+                return new Claim(stackName, claimId, new Lease(previous).used);
+            }
+            return null;
+
+        } catch (AmazonServiceException ase){
+            AwsUtils.printAmazonServiceException(log, ase);
+            return null;
+
+        } catch (AmazonClientException ace) {
+            AwsUtils.printAmazonClientException(log, ace);
+            return null;
+        }
+    }
+
+    /**
+     * Claims a stack that does not exist yet, named after the given prefix. The stack must be created with
+     * the tags returned by {@link #getTags()}.
+     * @return the claim, or null if it failed
+     */
+    public Claim newClaim(String stackPrefix){
+        String stackName = newStackName(stackPrefix);
+        String claimId = UUID.randomUUID().toString();
+
+        try {
+            if(!createTable())return null;
+            if(putClaim(stackName, claimId, System.currentTimeMillis(), "attribute_not_exists(#claim)", null) == null){
+                log.error("Stack " + stackName + " has already been claimed");
+                return null;
+            }
+            return new Claim(stackName, claimId, false);
+
+        } catch (AmazonServiceException ase){
+            AwsUtils.printAmazonServiceException(log, ase);
+            return null;
+
+        } catch (AmazonClientException ace) {
+            AwsUtils.printAmazonClientException(log, ace);
+            return null;
+        }
+    }
+
+    /**
+     * Tags of a new stack of the pool.
+     */
+    public Map<String, String> getTags(){
+        return Collections.singletonMap(POOL_TAG, name);
+    }
+
+    /**
+     * Returns a claimed stack to the pool. The lease is left as it is if the stack is no longer claimed with
+     * the given claim.
+     */
+    public boolean release(String stackName, String claimId){
+        try {
+            clients.getDynamoDb().updateItem(new UpdateItemRequest()
+                    .withTableName(table)
+                    .withKey(key(stackName))
+                    .withUpdateExpression("REMOVE #claim, #claimedAt")
+                    .withConditionExpression("#claim = :claim")
+                    .withExpressionAttributeNames(names())
+                    .withExpressionAttributeValues(Collections.singletonMap(":claim", new AttributeValue(claimId))));
+            log.info("Released stack " + stackName + " to pool " + name + ", its database will be restored when it is claimed again");
+            return true;
+
+        } catch (ConditionalCheckFailedException e){
+            log.error("Stack " + stackName + " is no longer claimed by this build, leaving it as it is");
+            return false;
+
+        } catch (AmazonServiceException ase){
+            AwsUtils.printAmazonServiceException(log, ase);
+            return false;
+
+        } catch (AmazonClientException ace) {
+            AwsUtils.printAmazonClientException(log, ace);
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the lease of a stack that has been deleted.
+     */
+    public void remove(String stackName){
+        try {
+            clients.getDynamoDb().deleteItem(table, key(stackName));
+        } catch (AmazonClientException e){
+            log.warn("Failed to remove the lease of stack " + stackName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates stacks until the pool has the given number of free stacks, counting those still being created and those
+     * whose claim has expired, and waits for the new stacks. The stacks are created at the same time.
+     */
+    public boolean fill(int size, long leaseMillis, String stackPrefix, String templateUrl, String onFailure,
+                        Map<String, String> parameters){
+        try {
+            if(!createTable())return false;
+
+            long now = System.currentTimeMillis();
+            int available = 0;
+            for(Stack stack : getStacks()){
+                boolean usable = READY.contains(stack.getStackStatus()) || stack.getStackStatus().equals("CREATE_IN_PROGRESS");
+                if(usable && getLease(stack.getStackName()).isFree(now, leaseMillis)){
+                    available++;
+                }
+            }
+            log.info("Pool " + name + " has " + available + " free stacks out of " + size);
+
+            List<String> created = new ArrayList<String>();
+            for(int i = available; i < size; i++){
+                String stackName = newStackName(stackPrefix);
+                if(!cloudFormation.create(stackName, templateUrl, onFailure, parameters, getTags())){
+                    return false;
+                }
+                created.add(stackName);
+            }
+
+            boolean success = true;
+            for(String stackName : created){
+                String status = cloudFormation.waitForCompletion(stackName);
+                log.info("Stack " + stackName + " of pool " + name + " completed with " + status);
+                success &= AwsCloudFormation.isComplete(status);
+            }
+            return success;
+
+        } catch (AmazonServiceException ase){
+            AwsUtils.printAmazonServiceException(log, ase);
+            return false;
+
+        } catch (AmazonClientException ace) {
+            AwsUtils.printAmazonClientException(log, ace);
+            return false;
+
+        } catch (InterruptedException iex){
+            log.error("Error while Thread.sleep() " + iex.getMessage());
+            return false;
+        }
+    }
+
+    // Creates the lease table unless it exists, and waits until it can be used
+    private boolean createTable(){
+        try {
+            clients.getDynamoDb().describeTable(table);
+            return true;
+        } catch (ResourceNotFoundException e){
+            log.info("Creating lease table " + table + "...");
+        }
+
+        try {
+            clients.getDynamoDb().createTable(new CreateTableRequest()
+                    .withTableName(table)
+                    .withAttributeDefinitions(new AttributeDefinition(STACK, ScalarAttributeType.S))
+                    .withKeySchema(new KeySchemaElement(STACK, KeyType.HASH))
+                    .withBillingMode(BillingMode.PAY_PER_REQUEST));
+        } catch (ResourceInUseException e){
+            // Created by another build in the meantime
+        }
+
+        try {
+            TableUtils.waitUntilActive(clients.getDynamoDb(), table);
+            return true;
+        } catch (InterruptedException | TableUtils.TableNeverTransitionedToStateException e){
+            log.error("Lease table " + table + " did not become active: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Claims the stack if the condition holds, and marks it as used
+    private Map<String, AttributeValue> putClaim(String stackName, String claimId, long now, String condition,
+                                                 Map<String, AttributeValue> conditionValues){
+        Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+        values.put(":pool", new AttributeValue(name));
+        values.put(":claim", new AttributeValue(claimId));
+        values.put(":now", number(now));
+        values.put(":used", new AttributeValue().withBOOL(true));
+        if(conditionValues != null){
+            values.putAll(conditionValues);
+        }
+
+        Map<String, String> names = names();
+        names.put("#pool", POOL);
+        names.put("#used", USED);
+
+        try {
+            Map<String, AttributeValue> previous = clients.getDynamoDb().updateItem(new UpdateItemRequest()
+                    .withTableName(table)
+                    .withKey(key(stackName))
+                    .withUpdateExpression("SET #pool = :pool, #claim = :claim, #claimedAt = :now, #used = :used")
+                    .withConditionExpression(condition)
+                    .withExpressionAttributeNames(names)
+                    .withExpressionAttributeValues(values)
+                    .withReturnValues(ReturnValue.ALL_OLD)).getAttributes();
+            return previous != null ? previous : Collections.<String, AttributeValue>emptyMap();
+        } catch (ConditionalCheckFailedException e){
+            return null;
+        }
+    }
+
+    private Lease getLease(String stackName){
+        Map<String, AttributeValue> item = clients.getDynamoDb().getItem(new GetItemRequest()
+                .withTableName(table)
+                .withKey(key(stackName))
+                .withConsistentRead(true)).getItem();
+        return new Lease(item != null ? item : Collections.<String, AttributeValue>emptyMap());
+    }
+
+    // Stacks tagged with the name of the pool
+    private List<Stack> getStacks(){
+        List<Stack> stacks = new ArrayList<Stack>();
+        for(Stack stack : cloudFormation.list()){
+            if(stack.getTags() == null)continue;
+            for(Tag tag : stack.getTags()){
+                if(tag.getKey().equals(POOL_TAG) && name.equals(tag.getValue())){
+                    stacks.add(stack);
+                }
+            }
+        }
+        return stacks;
+    }
+
+    private static String newStackName(String stackPrefix){
+        return stackPrefix + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    private static Map<String, AttributeValue> key(String stackName){
+        return Collections.singletonMap(STACK, new AttributeValue(stackName));
+    }
+
+    // Expressions refer to attributes by placeholder, every placeholder must be used
+    private static Map<String, String> names(){
+        Map<String, String> names = new HashMap<String, String>();
+        names.put("#claim", CLAIM);
+        names.put("#claimedAt", CLAIMED_AT);
+        return names;
+    }
+
+    private static AttributeValue number(long value){
+        return new AttributeValue().withN(String.valueOf(value));
+    }
+}
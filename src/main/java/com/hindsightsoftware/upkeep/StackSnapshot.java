@@ -0,0 +1,134 @@
+package com.hindsightsoftware.upkeep;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStackResourcesRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.Output;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackResource;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory view of a stack's outputs and resources. The stack is described once and then served from
+ * memory until the snapshot is refreshed or its TTL expires. Outputs and resources are fetched lazily and
+ * separately, and nested stacks are resolved on first use and memoized.
+ */
+public class StackSnapshot {
+    private final AmazonCloudFormation cf;
+    private final String stackName;
+    private final long ttl;
+    private Stack stack;
+    private Map<String, String> outputs;
+    private List<StackResource> stackResources;
+    private Map<String, String> resources;
+    private final Map<String, StackSnapshot> nested = new HashMap<String, StackSnapshot>();
+    private long fetchedAt;
+
+    /**
+     * @param stackName name or ID of the stack
+     * @param ttl time to live in milliseconds
+     */
+    public StackSnapshot(AmazonCloudFormation cf, String stackName, long ttl){
+        this.cf = cf;
+        this.stackName = stackName;
+        this.ttl = ttl;
+        this.fetchedAt = System.currentTimeMillis();
+    }
+
+    public String getStackName(){
+        return stackName;
+    }
+
+    /**
+     * Drops everything that has been fetched so far, including nested stacks.
+     */
+    public synchronized void refresh(){
+        stack = null;
+        outputs = null;
+        stackResources = null;
+        resources = null;
+        nested.clear();
+        fetchedAt = System.currentTimeMillis();
+    }
+
+    public synchronized Stack getStack(){
+        expire();
+        if(stack == null){
+            List<Stack> stacks = cf.describeStacks(new DescribeStacksRequest().withStackName(stackName)).getStacks();
+            if(stacks.isEmpty()){
+                throw new RuntimeException("Failed to get stack outputs by name: " + stackName);
+            }
+            stack = stacks.get(0);
+        }
+        return stack;
+    }
+
+    public synchronized Map<String, String> getOutputs(){
+        expire();
+        if(outputs == null){
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            for(Output output : getStack().getOutputs()){
+                values.put(output.getOutputKey(), output.getOutputValue());
+            }
+            outputs = Collections.unmodifiableMap(values);
+        }
+        return outputs;
+    }
+
+    public synchronized List<StackResource> getStackResources(){
+        expire();
+        if(stackResources == null){
+            stackResources = Collections.unmodifiableList(cf.describeStackResources(
+                    new DescribeStackResourcesRequest().withStackName(stackName)).getStackResources());
+        }
+        return stackResources;
+    }
+
+    public synchronized Map<String, String> getResources(){
+        expire();
+        if(resources == null){
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            for(StackResource resource : getStackResources()){
+                values.put(resource.getLogicalResourceId(), resource.getPhysicalResourceId());
+            }
+            resources = Collections.unmodifiableMap(values);
+        }
+        return resources;
+    }
+
+    public String getOutput(String key){
+        String value = getOutputs().get(key);
+        if(value == null) throw new RuntimeException("Unable to find output: " + key + " in stack: " + stackName);
+        return value;
+    }
+
+    public String getResource(String key){
+        String value = getResources().get(key);
+        if(value == null) throw new RuntimeException("Unable to find resource: " + key + " in stack: " + stackName);
+        return value;
+    }
+
+    /**
+     * @param key logical ID of an AWS::CloudFormation::Stack resource of this stack
+     */
+    public synchronized StackSnapshot getNested(String key){
+        expire();
+        StackSnapshot snapshot = nested.get(key);
+        if(snapshot == null){
+            snapshot = new StackSnapshot(cf, getResource(key), ttl);
+            nested.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    private void expire(){
+        if(System.currentTimeMillis() - fetchedAt > ttl){
+            refresh();
+        }
+    }
+}
@@ -9,17 +9,25 @@ import org.apache.maven.plugin.logging.SystemStreamLog;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Mojo( name = "start", defaultPhase = LifecyclePhase.PRE_INTEGRATION_TEST )
 public class Start extends AbstractMojo {
-
     @Parameter
     private boolean skip = false;
 
@@ -32,6 +40,18 @@ public class Start extends AbstractMojo {
     @Parameter( property = "jira.cloudformation.stack.name", defaultValue = "JIRA-Data-Center" )
     private String stackName;
 
+    @Parameter( property = "jira.cloudformation.region", defaultValue = "us-east-2" )
+    private String region;
+
+    @Parameter( property = "jira.cloudformation.aws.profile", defaultValue = "default" )
+    private String awsProfile;
+
+    @Parameter( property = "jira.cloudformation.aws.max.connections", defaultValue = "50" )
+    private Integer awsMaxConnections;
+
+    @Parameter( property = "jira.cloudformation.aws.endpoint", defaultValue = "" )
+    private String awsEndpoint;
+
     @Parameter( property = "jira.cloudformation.onfailure", defaultValue = "DELETE" )
     private String onFailure;
 
@@ -59,6 +79,9 @@ public class Start extends AbstractMojo {
     @Parameter( property = "jira.cloudformation.ssh.private.key", defaultValue = "" )
     private File sshPrivateKeyFile;
 
+    @Parameter( property = "jira.cloudformation.ssh.port", defaultValue = "22" )
+    private Integer sshPort;
+
     @Parameter( property = "jira.cloudformation.s3.aws.credentails", defaultValue = "" )
     private File s3AwsCredentials;
 
@@ -71,12 +94,21 @@ public class Start extends AbstractMojo {
     @Parameter(property = "jira.cloudformation.s3.restore.database.enabled", defaultValue = "true")
     private boolean s3RestoreDatabaseEnabled;
 
+    @Parameter(property = "jira.cloudformation.s3.restore.database.force", defaultValue = "false")
+    private boolean s3RestoreDatabaseForce;
+
     @Parameter( property = "jira.cloudformation.s3.restore.bucket", defaultValue = "" )
     private String s3RestoreBucket;
 
     @Parameter( property = "jira.cloudformation.s3.restore.psql", defaultValue = "" )
     private String s3RestorePsqlFileName;
 
+    @Parameter( property = "jira.cloudformation.s3.restore.psql.format", defaultValue = "auto" )
+    private String s3RestorePsqlFormat;
+
+    @Parameter( property = "jira.cloudformation.s3.restore.psql.jobs", defaultValue = "0" )
+    private Integer s3RestorePsqlJobs;
+
     @Parameter( property = "jira.cloudformation.s3.restore.indexes", defaultValue = "" )
     private String s3RestoreIndexesFileName;
 
@@ -86,35 +118,201 @@ public class Start extends AbstractMojo {
     @Parameter( property = "jira.cloudformation.max.wait.load", defaultValue = "300")
     private Integer maxLoadBalancerWait;
 
+    @Parameter( property = "jira.cloudformation.restore.threads", defaultValue = "8")
+    private Integer restoreThreads;
+
+    @Parameter( property = "jira.cloudformation.stop.timeout.graceful", defaultValue = "60")
+    private Integer stopGracefulTimeout;
+
+    @Parameter( property = "jira.cloudformation.stop.timeout.term", defaultValue = "30")
+    private Integer stopTermTimeout;
+
+    @Parameter( property = "jira.cloudformation.startup.strategy", defaultValue = "parallel")
+    private String startupStrategy;
+
+    @Parameter( property = "jira.cloudformation.startup.started", defaultValue = "Plugin system lateStartup ended|[Rr]eady to serve")
+    private String startupStartedPattern;
+
+    @Parameter( property = "jira.cloudformation.startup.fatal", defaultValue = "JOHNSON|Server startup failed|OutOfMemoryError")
+    private String startupFatalPattern;
+
+    @Parameter( property = "jira.cloudformation.timeline.path.start", defaultValue = "" )
+    private String timelinePath;
+
+    @Parameter( defaultValue = "${project}", readonly = true )
+    private MavenProject project;
+
     @Parameter( property = "jira.cloudformation.setenv", defaultValue = "" )
     private File setenvFile;
 
+    @Parameter( property = "jira.cloudformation.ssh.idle.timeout", defaultValue = "300")
+    private Integer sshIdleTimeout;
+
+    @Parameter( property = "jira.cloudformation.readiness.quorum", defaultValue = "0")
+    private Integer readinessQuorum;
+
+    @Parameter( property = "jira.cloudformation.max.wait.stack", defaultValue = "3600")
+    private Integer maxStackWait;
+
+    @Parameter( property = "jira.cloudformation.max.wait.instances", defaultValue = "1800")
+    private Integer maxInstancesWait;
+
+    @Parameter( property = "jira.cloudformation.stack.cache.ttl", defaultValue = "300")
+    private Integer stackCacheTtl;
+
+    @Parameter( property = "jira.cloudformation.http.max.connections", defaultValue = "20")
+    private Integer httpMaxConnections;
+
+    @Parameter( property = "jira.cloudformation.http.max.connections.route", defaultValue = "10")
+    private Integer httpMaxConnectionsPerRoute;
+
+    @Parameter( property = "jira.cloudformation.poll.delay", defaultValue = "5")
+    private Integer pollDelay;
+
+    @Parameter( property = "jira.cloudformation.poll.max.delay", defaultValue = "30")
+    private Integer pollMaxDelay;
+
+    @Parameter( property = "jira.cloudformation.pool.name", defaultValue = "" )
+    private String poolName;
+
+    @Parameter( property = "jira.cloudformation.pool.lease", defaultValue = "720")
+    private Integer poolLease;
+
+    @Parameter( property = "jira.cloudformation.pool.table", defaultValue = "upkeep-pool" )
+    private String poolTable;
+
+    /**
+     * Order in which the nodes are started once the backup has been restored.
+     */
+    private enum StartupStrategy {
+        // One node after the other, each once the previous one is up
+        SERIAL,
+        // All nodes at the same time
+        PARALLEL,
+        // The first node, and all other nodes at the same time once it is up
+        LEADER_FIRST
+    }
+
     private Log log;
 
+    private PollScheduler scheduler;
+
+    private Http http;
+
+    private SshTunnelManager sshTunnels;
+
+    private SshSessionPool sshPool;
+
+    private Timeline timeline;
+
+    // The claimed stack of the pool has been used by an earlier build, so its data must be reset
+    private boolean claimedStackUsed = false;
+
     public void setLog(Log log){
         this.log = new SystemStreamLog();
     }
 
     public void execute() throws MojoExecutionException {
         if(skip)return;
+        long started = System.nanoTime();
+        timeline = new Timeline("start");
+
+        scheduler = new PollScheduler(log, 2, PollScheduler.Backoff.exponential(
+                TimeUnit.SECONDS.toMillis(pollDelay), TimeUnit.SECONDS.toMillis(pollMaxDelay)), timeline);
+
+        http = new Http(httpMaxConnections, httpMaxConnectionsPerRoute);
 
+        boolean success = false;
+        try {
+            provision(started);
+            success = true;
+        } finally {
+            timeline.end(success ? Timeline.SUCCESS : Timeline.FAILED);
+            timeline.export(getTimelineFile(), project, log);
+            scheduler.close();
+            try {
+                http.close();
+            } catch (IOException e) {
+                log.warn("Error while closing HTTP client: " + e.getMessage());
+            }
+            if(sshPool != null) {
+                sshPool.close();
+                sshPool = null;
+            }
+            if(sshTunnels != null) {
+                sshTunnels.close();
+                sshTunnels = null;
+            }
+        }
+    }
+
+    private void provision(long started) throws MojoExecutionException {
         if(templateUrl.length() == 0){
             throw new MojoExecutionException("Missing cloudformation.template parameter!");
         }
 
-        AwsCloudFormation cloudFormationClient = new AwsCloudFormation(log);
-        AwsDatabase databaseClient = new AwsDatabase(log);
-        AwsInstance instanceClient = new AwsInstance(log);
-        AwsLoadBalancer loadBalancerClient = new AwsLoadBalancer(log);
+        final boolean directoryDump;
+        final StartupStrategy strategy;
+        try {
+            directoryDump = JiraRestoreUtils.isDirectoryDump(s3RestorePsqlFormat, s3RestorePsqlFileName);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage());
+        }
+        try {
+            strategy = StartupStrategy.valueOf(startupStrategy.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException("Unknown startup strategy: " + startupStrategy);
+        }
+
+        // AWS clients are only created once they are first used
+        AwsClientFactory clients = new AwsClientFactory(log, region, awsProfile, awsMaxConnections, awsEndpoint);
+        AwsCloudFormation cloudFormationClient = new AwsCloudFormation(log, clients, scheduler, maxStackWait,
+                TimeUnit.SECONDS.toMillis(stackCacheTtl));
+        AwsInstance instanceClient = new AwsInstance(log, clients);
+        AwsDatabase databaseClient = new AwsDatabase(log, clients);
+        AwsLoadBalancer loadBalancerClient = new AwsLoadBalancer(log, clients, scheduler);
 
         Map<String, String> outputs = new HashMap<String, String>();
         Map<String, String> resources = new HashMap<String, String>();
 
+        clients.getCloudFormation();
+        long startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        timeline.record("startup", null, System.currentTimeMillis() - startupMillis, startupMillis, 0, Timeline.SUCCESS);
+        log.info("Plugin startup took " + startupMillis + " ms, of which "
+                + clients.getStartupMillis() + " ms initialising AWS clients");
+
+        // Claim a stack of the pool, or a new stack when none of them is free
+        String stackName = this.stackName;
+        Map<String, String> tags = Collections.emptyMap();
+        if(!isEmpty(poolName)) {
+            try (Timeline.Phase phase = timeline.begin("claim")) {
+                StackPool pool = new StackPool(log, clients, cloudFormationClient, poolName, poolTable);
+                // Restoring the database is what resets a used stack, without it only unused stacks can be claimed
+                StackPool.Claim claim = pool.claim(TimeUnit.MINUTES.toMillis(poolLease), s3RestoreDatabaseEnabled);
+                if(claim == null) {
+                    claim = pool.newClaim(stackName);
+                    if(claim == null) {
+                        throw new MojoExecutionException("Failed to claim a stack of pool " + poolName);
+                    }
+                    tags = pool.getTags();
+                    log.info("No free stack in pool " + poolName + ", creating " + claim.stackName);
+                }
+                stackName = claim.stackName;
+                claimedStackUsed = claim.used;
+                project.getProperties().setProperty(StackPool.STACK_PROPERTY, claim.stackName);
+                project.getProperties().setProperty(StackPool.CLAIM_PROPERTY, claim.claimId);
+                phase.succeed();
+            }
+        }
+
         // Build JIRA stack and save all outputs and resources generated
-        if(cloudFormationClient.build(stackName, templateUrl, onFailure, parameters, outputs, resources)){
-            log.info("Cloud formation successfully created!");
-        } else {
-            throw new MojoExecutionException("Failed to create cloud formation!");
+        try (Timeline.Phase phase = timeline.begin("stack")) {
+            if(cloudFormationClient.build(stackName, templateUrl, onFailure, parameters, tags, outputs, resources)){
+                log.info("Cloud formation successfully created!");
+                phase.succeed();
+            } else {
+                throw new MojoExecutionException("Failed to create cloud formation!");
+            }
         }
 
         // Write outputs to configuration file based on a filter provided by user
@@ -129,56 +327,87 @@ public class Start extends AbstractMojo {
             writeOutputs(confPath, outputs);
         }
 
+        // All values below are served from the snapshot taken once the stack has completed
+        StackSnapshot stack = cloudFormationClient.getSnapshot(stackName);
+
         // Get bastion IP
-        String bastionIp = cloudFormationClient.getOutputValue(stackName, "BastionIP");
+        String bastionIp = stack.getOutput("BastionIP");
         log.info("Got bastion IP: " + bastionIp);
 
         // Get Jira base URL
-        String baseUrl = cloudFormationClient.getOutputValue(stackName, "LoadBalancerURL");
+        String baseUrl = stack.getOutput("LoadBalancerURL");
         log.info("Got Jira base URL: " + baseUrl);
 
         // Get database URL
-        String databaseEndpointUrl = cloudFormationClient.getOutputValue(stackName, "DBEndpointAddress");
+        String databaseEndpointUrl = stack.getOutput("DBEndpointAddress");
         log.info("Got Jira database URL: " + databaseEndpointUrl);
 
         // Get the Jira Stack
-        String jiraStackPhysicalId = cloudFormationClient.getResourceValue(stackName, "JiraDCStack");
+        StackSnapshot jiraStack = stack.getNested("JiraDCStack");
+        String jiraStackPhysicalId = jiraStack.getStackName();
         log.info("Got Jira stack ID: " + jiraStackPhysicalId);
 
         // Get load balancer physical ID
-        String loadBalancerPhysicalId = cloudFormationClient.getResourceValue(jiraStackPhysicalId, "LoadBalancer");
+        String loadBalancerPhysicalId = jiraStack.getResource("LoadBalancer");
         log.info("Got Jira load balancer ID: " + loadBalancerPhysicalId);
 
-        // Wait for all JIRA Nodes
-        if (!loadBalancerClient.waitForInstances(loadBalancerPhysicalId)) {
-            throw new MojoExecutionException("Something went wrong while waiting for instances");
-        }
+        List<String> instanceIds;
+        Map<String, AwsInstance.Details> instances;
+        List<String> instancesIps = new ArrayList<String>();
+        try (Timeline.Phase phase = timeline.begin("instances")) {
+            // Wait for all JIRA Nodes
+            if (!await(loadBalancerClient.waitForInstances(loadBalancerPhysicalId, maxInstancesWait))) {
+                throw new MojoExecutionException("Something went wrong while waiting for instances");
+            }
+
+            // Get all instances private IPs with one batched call
+            instanceIds = loadBalancerClient.getInstanceIDs(loadBalancerPhysicalId);
+            if (instanceIds == null) {
+                throw new MojoExecutionException("Failed to get instances of load balancer: " + loadBalancerPhysicalId);
+            }
 
-        // Get all instances private IPs
-        List<String> instancesIps = loadBalancerClient.getInstanceIDs(loadBalancerPhysicalId).stream()
-                .map(id -> instanceClient.getPrivateIp(id)).collect(Collectors.toList());
+            instances = instanceClient.describe(instanceIds);
+            for (AwsInstance.Details details : instances.values()) {
+                log.info("Found instance: " + details);
+            }
 
-        for (String ip : instancesIps) {
-            log.info("Found instance private IP: " + ip);
+            for (String instanceId : instanceIds) {
+                AwsInstance.Details details = instances.get(instanceId);
+                if (details == null || isEmpty(details.privateIp)) {
+                    throw new MojoExecutionException("Failed to get private IP of instance: " + instanceId);
+                }
+                instancesIps.add(details.privateIp);
+            }
+            phase.succeed();
         }
 
+        // node private IP mapped to the time JIRA has been started on it, until its boot time has been recorded
+        Map<String, Long> bootStarted = new ConcurrentHashMap<String, Long>();
         if (s3RestoreIndexesEnabled || s3RestoreDatabaseEnabled) {
-            restoreFromPsqlBackup(bastionIp, instancesIps, databaseEndpointUrl);
+            try (Timeline.Phase phase = timeline.begin("restore")) {
+                restoreFromPsqlBackup(bastionIp, instancesIps, instances.get(instanceIds.get(0)).vCpus, databaseEndpointUrl,
+                        databaseClient, directoryDump, strategy, bootStarted);
+                phase.succeed();
+            }
         } else {
             log.info("No backup restore mechanism specified... skipping...");
         }
 
-        // Wait for health check
-        log.info(
-                "Waiting to health check of all JIRA instances. This is needed in order for the load balancer to wake up!");
-        if (!loadBalancerClient.waitForHealthCheck(loadBalancerPhysicalId, maxLoadBalancerWait, 15000)) {
-            throw new MojoExecutionException("Health Check failed!");
+        // Wait for the load balancer health check and for JIRA on every node at the same time
+        log.info("Waiting for JIRA nodes to be ready. This is also needed in order for the load balancer to wake up!");
+        Map<String, String> statusUrls = new LinkedHashMap<String, String>();
+        for (String instanceId : instanceIds) {
+            statusUrls.put(instanceId, getStatusUrl(bastionIp, instances.get(instanceId).privateIp));
         }
 
-        // Wait for JIRA to return http code between 200 - 499
-        log.info("Waiting for JIRA on load balancer URL!");
-        if (!JiraRestoreUtils.waitForUrlToBeAlive(log, baseUrl, maxJiraHttpWait)) {
-            throw new MojoExecutionException("Something went wrong while waiting for JIRA");
+        ReadinessGate gate = new ReadinessGate(log, scheduler, http, loadBalancerClient);
+        try (Timeline.Phase phase = timeline.begin("readiness")) {
+            // the boot time of the nodes the restore did not wait for is recorded once the gate sees them running
+            if (!await(gate.await(loadBalancerPhysicalId, statusUrls, readinessQuorum, maxLoadBalancerWait, maxJiraHttpWait,
+                    instanceId -> recordBoot(instances.get(instanceId).privateIp, bootStarted)))) {
+                throw new MojoExecutionException("Something went wrong while waiting for JIRA nodes to be ready");
+            }
+            phase.succeed();
         }
 
         if (!isEmpty(baseUrlPath)) {
@@ -186,74 +415,228 @@ public class Start extends AbstractMojo {
         }
     }
 
-    private void restoreFromPsqlBackup(String bastionIp, List<String> ec2PrivateIpAddresses, String rdsInstanceEndpoint) throws MojoExecutionException {
+    /**
+     * @param databaseNodeVCpus vCPUs of the first node, which restores the database, or 0 if they are not known
+     * @param bootStarted filled with the time JIRA has been started on every node whose boot time is not recorded yet
+     */
+    private void restoreFromPsqlBackup(String bastionIp, List<String> ec2PrivateIpAddresses, int databaseNodeVCpus,
+                                       String rdsInstanceEndpoint, AwsDatabase databaseClient, boolean directoryDump,
+                                       StartupStrategy strategy, Map<String, Long> bootStarted) throws MojoExecutionException {
         log.info("Restoring JIRA for: " + ec2PrivateIpAddresses.size() + " EC2 instance nodes");
 
-        log.info("Stopping all instances of JIRA in order to restore the database...");
-        for(String address : ec2PrivateIpAddresses) {
-            // Open ssh connection
-            SecuredShellClient ssh = getSsh(bastionIp, address);
-            if (!JiraRestoreUtils.stopJira(ssh)) {
-                throw new MojoExecutionException("Failed to stop JIRA in instance: " + address);
+        try (RestorePipeline pipeline = new RestorePipeline(log, restoreThreads, timeline)) {
+            // JIRA must be down on all nodes before the database can be restored
+            List<CompletableFuture<Void>> stopped = new ArrayList<CompletableFuture<Void>>();
+            Map<String, CompletableFuture<Void>> nodeStopped = new HashMap<String, CompletableFuture<Void>>();
+            Map<String, CompletableFuture<Void>> nodeCredentials = new HashMap<String, CompletableFuture<Void>>();
+
+            for(String address : ec2PrivateIpAddresses) {
+                CompletableFuture<Void> stop = pipeline.submit("stop", address, () -> {
+                    if (!JiraRestoreUtils.stopJira(log, getSsh(bastionIp, address), stopGracefulTimeout, stopTermTimeout)) {
+                        throw new MojoExecutionException("Failed to stop JIRA in instance: " + address);
+                    }
+                });
+                stopped.add(stop);
+                nodeStopped.put(address, stop);
+
+                // upload aws credentials needed to access S3 bucket
+                nodeCredentials.put(address, pipeline.submit("credentials", address, () -> {
+                    if (!JiraRestoreUtils.uploadCredentials(getSsh(bastionIp, address), s3AwsCredentials.getAbsolutePath(), s3AwsConfig.getAbsolutePath())) {
+                        throw new MojoExecutionException("Failed to upload aws credentials for accessing S3 bucket!");
+                    }
+                }));
             }
-        }
-
-        boolean psqlRestored = !s3RestoreDatabaseEnabled;
-
-        for(String address : ec2PrivateIpAddresses) {
-            // Open ssh connection
-            SecuredShellClient ssh = getSsh(bastionIp, address);
 
-            // Restore JIRA from Postgres SQL
-
-            // upload aws credentials needed to access S3 bucket
-            if (!JiraRestoreUtils.uploadCredentials(ssh, s3AwsCredentials.getAbsolutePath(), s3AwsConfig.getAbsolutePath())) {
-                throw new MojoExecutionException("Failed to upload aws credentials for accessing S3 bucket!");
+            CompletableFuture<Void> allStopped = CompletableFuture.allOf(stopped.toArray(new CompletableFuture<?>[0]));
+
+            // Restoring Postgres SQL must be done only once, from the first node.
+            String databaseNode = ec2PrivateIpAddresses.get(0);
+            CompletableFuture<Void> database = CompletableFuture.completedFuture(null);
+            if (s3RestoreDatabaseEnabled) {
+                database = pipeline.submit("database", databaseNode, () -> {
+                    SecuredShellClient ssh = getSsh(bastionIp, databaseNode);
+
+                    // skip everything if the database has already been restored from the same backup
+                    String fingerprint = JiraRestoreUtils.getDumpFingerprint(ssh, s3RestoreBucket, s3RestorePsqlFileName, directoryDump);
+                    if (fingerprint == null) {
+                        log.warn("Unable to get the fingerprint of the Postgres SQL backup, restoring it");
+                    } else if (s3RestoreDatabaseForce) {
+                        log.info("Database restore forced");
+                    } else if (claimedStackUsed) {
+                        log.info("Database restore forced, the stack has been used by an earlier build");
+                    } else if (fingerprint.equals(JiraRestoreUtils.getRestoreMarker(ssh, rdsInstanceEndpoint, rdsPassword))) {
+                        log.info("Database has already been restored from " + fingerprint + "... skipping...");
+                        return;
+                    }
+
+                    // download the psql file or directory
+                    if (!JiraRestoreUtils.getPsqlFromBucket(ssh, s3RestoreBucket, s3RestorePsqlFileName, directoryDump)) {
+                        throw new MojoExecutionException("Failed to get Postgres SQL backup from S3 bucket!");
+                    }
+
+                    // as many parallel jobs as both the node and the database instance can take
+                    int jobs = s3RestorePsqlJobs;
+                    if (jobs <= 0) {
+                        String instanceClass = databaseClient.getInstanceClass(rdsInstanceEndpoint);
+                        log.info("Got Jira database instance class: " + instanceClass);
+                        jobs = JiraRestoreUtils.getRestoreJobs(log, ssh, databaseNodeVCpus, AwsDatabase.getVCpus(instanceClass));
+                    }
+
+                    // restore Postgres SQL
+                    if (!JiraRestoreUtils.restoreFromPsql(log, ssh, rdsInstanceEndpoint, rdsPassword, s3RestorePsqlFileName, jobs)) {
+                        throw new MojoExecutionException("Failed restore Postgres SQL backup!");
+                    }
+
+                    if (fingerprint != null && !JiraRestoreUtils.setRestoreMarker(ssh, rdsInstanceEndpoint, rdsPassword, fingerprint)) {
+                        log.warn("Failed to record the restored Postgres SQL backup, it will be restored again next time");
+                    }
+                }, allStopped, nodeCredentials.get(databaseNode));
             }
 
-            // Restoring Postgres SQL must be done only once.
-            // However, indexes need to be restored on all instances.
-            if(!psqlRestored) {
-                psqlRestored = true;
-
-                // download the psql file
-                if (!JiraRestoreUtils.getPsqlFromBucket(ssh, s3RestoreBucket, s3RestorePsqlFileName)) {
-                    throw new MojoExecutionException("Failed to get Postgres SQL backup from S3 bucket!");
+            // Indexes need to be restored on all instances, the other nodes do it while the database restores
+            Map<String, CompletableFuture<Void>> nodeReady = new HashMap<String, CompletableFuture<Void>>();
+            for(String address : ec2PrivateIpAddresses) {
+                CompletableFuture<Void> ready = CompletableFuture.allOf(nodeStopped.get(address), nodeCredentials.get(address));
+                if (address.equals(databaseNode)) {
+                    ready = CompletableFuture.allOf(ready, database);
                 }
 
-                // restore Postgres SQL
-                if (!JiraRestoreUtils.restoreFromPsql(log, ssh, rdsInstanceEndpoint, rdsPassword, s3RestorePsqlFileName)) {
-                    throw new MojoExecutionException("Failed restore Postgres SQL backup!");
+                if (s3RestoreIndexesEnabled) {
+                    ready = pipeline.submit("indexes", address, () -> {
+                        // download the indexes file and restore it
+                        if (!JiraRestoreUtils.getIndexesFromBucket(log, getSsh(bastionIp, address), s3RestoreBucket, s3RestoreIndexesFileName)) {
+                            throw new MojoExecutionException("Failed to get indexes backup from S3 bucket!");
+                        }
+                    }, ready);
                 }
+
+                nodeReady.put(address, ready);
             }
-            
-            if (s3RestoreIndexesEnabled) {
-                // download the indexes file and restore it
-                if (!JiraRestoreUtils.getIndexesFromBucket(ssh, s3RestoreBucket, s3RestoreIndexesFileName)) {
-                    throw new MojoExecutionException("Failed to get indexes backup from S3 bucket!");
+
+            // start JIRA again once the database is in place, in the order of the startup strategy
+            log.info("Starting JIRA nodes with the " + strategy.name().toLowerCase().replace('_', '-') + " strategy");
+            Map<String, Map<String, Long>> startupPhases = new ConcurrentHashMap<String, Map<String, Long>>();
+            CompletableFuture<Void> previous = CompletableFuture.completedFuture(null);
+            for(String address : ec2PrivateIpAddresses) {
+                CompletableFuture<Void> start = pipeline.submit("start", address, () -> {
+                    SecuredShellClient ssh = getSsh(bastionIp, address);
+                    long startedAt = System.currentTimeMillis();
+                    bootStarted.put(address, startedAt);
+                    Map<String, Long> phases = new LinkedHashMap<String, Long>();
+                    if (!JiraRestoreUtils.startJira(log, ssh, startupStartedPattern, startupFatalPattern, maxJiraHttpWait, phases)) {
+                        throw new MojoExecutionException("Failed to start JIRA in instance: " + address);
+                    }
+                    startupPhases.put(address, phases);
+                    for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                        timeline.record("restore/jira startup/" + phase.getKey(), address, startedAt, phase.getValue(), 0, Timeline.SUCCESS);
+                    }
+                }, nodeReady.get(address), database, previous);
+
+                boolean awaited = strategy == StartupStrategy.SERIAL
+                        || (strategy == StartupStrategy.LEADER_FIRST && address.equals(databaseNode));
+                if (awaited) {
+                    // the next nodes start once this one is up, the readiness gate waits for the other nodes
+                    previous = pipeline.submit("boot", address, () -> {
+                        if (!await(waitForBoot(bastionIp, address, bootStarted))) {
+                            throw new MojoExecutionException("JIRA in instance " + address + " did not come up");
+                        }
+                    }, start);
                 }
             }
 
-            // start JIRA again
-            if (!JiraRestoreUtils.startJira(ssh)) {
-                // Try starting it second time
-                if(!JiraRestoreUtils.startJira(ssh)) {
-                    throw new MojoExecutionException("Failed to start JIRA in instance: " + address);
-                }
+            pipeline.await();
+
+            for (Map.Entry<String, Map<String, Long>> node : startupPhases.entrySet()) {
+                log.info("Startup phases of JIRA on " + node.getKey() + ": " + node.getValue().entrySet().stream()
+                        .map(phase -> String.format("%s %.1f s", phase.getKey(), phase.getValue() / 1000.0))
+                        .collect(Collectors.joining(", ")));
             }
         }
     }
 
+    // Completes once JIRA on the node reports that it is up, and logs how long it took since it has been started
+    private CompletableFuture<Boolean> waitForBoot(String bastionIp, String address, Map<String, Long> bootStarted) throws MojoExecutionException {
+        String statusUrl = getStatusUrl(bastionIp, address);
+        if (statusUrl == null) {
+            log.warn("No status endpoint for node " + address + ", not waiting for it to boot");
+            return CompletableFuture.completedFuture(true);
+        }
+
+        return scheduler.poll("JIRA on node " + address + " to boot", maxJiraHttpWait,
+                () -> ReadinessGate.getReadyState(http, statusUrl) != null
+        ).whenComplete((up, error) -> {
+            if (error == null && up) {
+                recordBoot(address, bootStarted);
+            }
+        });
+    }
+
+    // Records how long JIRA on the node took to boot, once, if it has been started by the restore
+    private void recordBoot(String address, Map<String, Long> bootStarted) {
+        Long startedAt = bootStarted.remove(address);
+        if (startedAt != null) {
+            long millis = System.currentTimeMillis() - startedAt;
+            timeline.record("restore/jira boot", address, startedAt, millis, 0, Timeline.SUCCESS);
+            log.info(String.format("JIRA on node %s booted in %.1f s", address, millis / 1000.0));
+        }
+    }
+
     private SecuredShellClient getSsh(String bastionIp, String host) throws MojoExecutionException{
-        log.info("Connecting to " + host + " via bastion " + bastionIp + "...");
+        return new SecuredShellClient(log, getSshPool(), bastionIp, host, "ec2-user");
+    }
+
+    private synchronized SshSessionPool getSshPool() throws MojoExecutionException{
+        if(sshPool == null) {
+            sshPool = new SshSessionPool(log, getSshTunnels(), sshIdleTimeout);
+        }
+        return sshPool;
+    }
+
+    private synchronized SshTunnelManager getSshTunnels() throws MojoExecutionException{
+        if(sshTunnels == null) {
+            try {
+                sshTunnels = new SshTunnelManager(log, sshPrivateKeyFile, sshPort);
+            } catch (JSchException e) {
+                throw new MojoExecutionException("SSH error: " + e.getMessage());
+            }
+        }
+        return sshTunnels;
+    }
+
+    // JIRA status endpoint of a node, reached through the bastion. Null if there is no SSH key to reach it.
+    private String getStatusUrl(String bastionIp, String host) throws MojoExecutionException {
+        if (sshPrivateKeyFile == null || !sshPrivateKeyFile.isFile()) {
+            return null;
+        }
         try {
-            return new SecuredShellClient(log, bastionIp, host, "ec2-user", sshPrivateKeyFile);
+            int port = getSshTunnels().forwardLocalPort(bastionIp, "ec2-user", host, 8080);
+            return "http://127.0.0.1:" + port + "/status";
         } catch (JSchException e) {
             throw new MojoExecutionException("SSH error: " + e.getMessage());
         }
     }
 
-    private void writeOutputs(String path, Map<String, String> params) throws MojoExecutionException {
+    // The timeline is written to the given path, or next to the base URL file
+    private File getTimelineFile(){
+        if (!isEmpty(timelinePath)) {
+            return new File(timelinePath);
+        } else if (!isEmpty(baseUrlPath)) {
+            return new File(new File(baseUrlPath).getAbsoluteFile().getParentFile(), "timeline-start.json");
+        }
+        return null;
+    }
+
+    private boolean await(CompletableFuture<Boolean> wait) throws MojoExecutionException {
+        try {
+            return wait.join();
+        } catch (CompletionException e) {
+            throw new MojoExecutionException(e.getCause().getMessage(), e.getCause());
+        } catch (CancellationException e) {
+            throw new MojoExecutionException("Wait has been cancelled");
+        }
+    }
+
+    static void writeOutputs(String path, Map<String, String> params) throws MojoExecutionException {
         try {
             BufferedWriter output = new BufferedWriter(new FileWriter(path));
             for(Map.Entry<String, String> param : params.entrySet()){
@@ -7,6 +7,10 @@ import org.apache.maven.plugin.logging.SystemStreamLog;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
 
 @Mojo( name = "stop", defaultPhase = LifecyclePhase.POST_INTEGRATION_TEST )
 public class Stop extends AbstractMojo {
@@ -16,6 +20,45 @@ public class Stop extends AbstractMojo {
     @Parameter( property = "jira.cloudformation.stack.name", defaultValue = "JIRA-Data-Center" )
     private String stackName;
 
+    @Parameter( property = "jira.cloudformation.region", defaultValue = "us-east-2" )
+    private String region;
+
+    @Parameter( property = "jira.cloudformation.aws.profile", defaultValue = "default" )
+    private String awsProfile;
+
+    @Parameter( property = "jira.cloudformation.aws.max.connections", defaultValue = "50" )
+    private Integer awsMaxConnections;
+
+    @Parameter( property = "jira.cloudformation.aws.endpoint", defaultValue = "" )
+    private String awsEndpoint;
+
+    @Parameter( property = "jira.cloudformation.max.wait.stack", defaultValue = "3600")
+    private Integer maxStackWait;
+
+    @Parameter( property = "jira.cloudformation.poll.delay", defaultValue = "5")
+    private Integer pollDelay;
+
+    @Parameter( property = "jira.cloudformation.poll.max.delay", defaultValue = "30")
+    private Integer pollMaxDelay;
+
+    @Parameter( property = "jira.cloudformation.base.url.path", defaultValue = "${project.build.testOutputDirectory}/baseurl" )
+    private String baseUrlPath;
+
+    @Parameter( property = "jira.cloudformation.timeline.path.stop", defaultValue = "" )
+    private String timelinePath;
+
+    @Parameter( property = "jira.cloudformation.pool.name", defaultValue = "" )
+    private String poolName;
+
+    @Parameter( property = "jira.cloudformation.pool.release", defaultValue = "true" )
+    private boolean poolRelease;
+
+    @Parameter( property = "jira.cloudformation.pool.table", defaultValue = "upkeep-pool" )
+    private String poolTable;
+
+    @Parameter( defaultValue = "${project}", readonly = true )
+    private MavenProject project;
+
     private Log log;
 
     public void setLog(Log log){
@@ -25,10 +68,55 @@ public class Stop extends AbstractMojo {
     public void execute() throws MojoExecutionException {
         if(skip)return;
 
-        AwsCloudFormation cloudFormationClient = new AwsCloudFormation(log);
+        Timeline timeline = new Timeline("stop");
+        PollScheduler scheduler = new PollScheduler(log, 1, PollScheduler.Backoff.exponential(
+                TimeUnit.SECONDS.toMillis(pollDelay), TimeUnit.SECONDS.toMillis(pollMaxDelay)), timeline);
+        boolean success = false;
+        try {
+            AwsClientFactory clients = new AwsClientFactory(log, region, awsProfile, awsMaxConnections, awsEndpoint);
+            AwsCloudFormation cloudFormationClient = new AwsCloudFormation(log, clients, scheduler, maxStackWait);
+
+            // The stack claimed by the start goal goes back to the pool instead of being deleted
+            String claimedStack = project != null ? project.getProperties().getProperty(StackPool.STACK_PROPERTY) : null;
+            String claimId = project != null ? project.getProperties().getProperty(StackPool.CLAIM_PROPERTY) : null;
+            StackPool pool = new StackPool(log, clients, cloudFormationClient, poolName, poolTable);
+            if(poolName != null && poolName.length() > 0 && claimedStack != null && claimId != null && poolRelease){
+                try (Timeline.Phase phase = timeline.begin("release")) {
+                    if(!pool.release(claimedStack, claimId)){
+                        throw new MojoExecutionException("Failed to release stack " + claimedStack + " to pool " + poolName);
+                    }
+                    phase.succeed();
+                }
+            } else {
+                if(poolName != null && poolName.length() > 0 && claimedStack == null){
+                    log.warn("No stack of pool " + poolName + " has been claimed by this build, stopping " + stackName);
+                }
+                String name = claimedStack != null ? claimedStack : stackName;
+                try (Timeline.Phase phase = timeline.begin("stack")) {
+                    if(!cloudFormationClient.stop(name)){
+                        throw new MojoExecutionException("Failed to stop stack!");
+                    }
+                    if(claimedStack != null){
+                        pool.remove(claimedStack);
+                    }
+                    phase.succeed();
+                }
+            }
+            success = true;
+        } finally {
+            timeline.end(success ? Timeline.SUCCESS : Timeline.FAILED);
+            timeline.export(getTimelineFile(), project, log);
+            scheduler.close();
+        }
+    }
 
-        if(!cloudFormationClient.stop(stackName)){
-            throw new MojoExecutionException("Failed to stop stack!");
+    // The timeline is written to the given path, or next to the base URL file written by the start goal
+    private File getTimelineFile(){
+        if(timelinePath != null && timelinePath.length() > 0){
+            return new File(timelinePath);
+        } else if(baseUrlPath != null && baseUrlPath.length() > 0){
+            return new File(new File(baseUrlPath).getAbsoluteFile().getParentFile(), "timeline-stop.json");
         }
+        return null;
     }
 }
@@ -0,0 +1,224 @@
+package com.hindsightsoftware.upkeep;
+
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Structured record of the phases of one goal execution, with their node, duration, retries and outcome.
+ * Sub-phases are named after their parent phase, e.g. "restore/database". Phases can be recorded from any thread.
+ */
+public class Timeline {
+    public static final String SUCCESS = "success";
+    public static final String FAILED = "failed";
+    public static final String TIMEOUT = "timeout";
+    public static final String CANCELLED = "cancelled";
+
+    public class Phase implements AutoCloseable {
+        private final String name;
+        private final String node;
+        private final long startedAt;
+        private final long startNanos;
+        private long duration = -1;
+        private int retries = 0;
+        private String outcome;
+
+        private Phase(String name, String node){
+            this.name = name;
+            this.node = node;
+            this.startedAt = System.currentTimeMillis();
+            this.startNanos = System.nanoTime();
+        }
+
+        private Phase(String name, String node, long startedAt, long duration, int retries, String outcome){
+            this.name = name;
+            this.node = node;
+            this.startedAt = startedAt;
+            this.startNanos = 0;
+            this.duration = duration;
+            this.retries = retries;
+            this.outcome = outcome;
+        }
+
+        public synchronized void retry(){
+            retries++;
+        }
+
+        public void succeed(){
+            end(SUCCESS);
+        }
+
+        /**
+         * Ends the phase, only the first outcome counts.
+         */
+        public synchronized void end(String outcome){
+            if(this.outcome != null)return;
+            this.outcome = outcome;
+            this.duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * A phase that is closed before it has succeeded has failed.
+         */
+        @Override
+        public void close(){
+            end(FAILED);
+        }
+    }
+
+    private final String goal;
+    private final Phase total;
+    private final List<Phase> phases = new ArrayList<Phase>();
+
+    public Timeline(String goal){
+        this.goal = goal;
+        this.total = new Phase(goal, null);
+    }
+
+    public String getGoal(){
+        return goal;
+    }
+
+    public Phase begin(String name){
+        return begin(name, null);
+    }
+
+    public synchronized Phase begin(String name, String node){
+        Phase phase = new Phase(name, node);
+        phases.add(phase);
+        return phase;
+    }
+
+    /**
+     * Records a phase that has already ended.
+     * @param startedAt start time in milliseconds since the epoch
+     * @param duration duration in milliseconds
+     */
+    public synchronized void record(String name, String node, long startedAt, long duration, int retries, String outcome){
+        phases.add(new Phase(name, node, startedAt, duration, retries, outcome));
+    }
+
+    /**
+     * Ends the whole execution.
+     */
+    public void end(String outcome){
+        total.end(outcome);
+    }
+
+    public synchronized String toJson(){
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"goal\": ").append(quote(goal)).append(",\n");
+        json.append("  \"startedAt\": ").append(quote(timestamp(total.startedAt))).append(",\n");
+        json.append("  \"duration\": ").append(total.duration).append(",\n");
+        json.append("  \"outcome\": ").append(quote(total.outcome)).append(",\n");
+        json.append("  \"phases\": [");
+        for(int i = 0; i < phases.size(); i++){
+            Phase phase = phases.get(i);
+            synchronized (phase) {
+                json.append(i == 0 ? "\n" : ",\n");
+                json.append("    { \"name\": ").append(quote(phase.name))
+                        .append(", \"node\": ").append(quote(phase.node))
+                        .append(", \"startedAt\": ").append(quote(timestamp(phase.startedAt)))
+                        .append(", \"offset\": ").append(phase.startedAt - total.startedAt)
+                        .append(", \"duration\": ").append(phase.duration)
+                        .append(", \"retries\": ").append(phase.retries)
+                        .append(", \"outcome\": ").append(quote(phase.outcome)).append(" }");
+            }
+        }
+        json.append(phases.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Flattens the timeline into properties such as "prefix.duration" and "prefix.restore.database[10.0.0.1].duration".
+     * Phases that have not ended have a duration of -1 and no outcome.
+     */
+    public synchronized Map<String, String> toProperties(String prefix){
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        properties.put(prefix + ".duration", String.valueOf(total.duration));
+        properties.put(prefix + ".outcome", String.valueOf(total.outcome));
+        for(Phase phase : phases){
+            synchronized (phase) {
+                String key = prefix + "." + phase.name.replace('/', '.').replaceAll("[^A-Za-z0-9.-]+", "-")
+                        + (phase.node != null ? "[" + phase.node + "]" : "");
+                properties.put(key + ".duration", String.valueOf(phase.duration));
+                properties.put(key + ".retries", String.valueOf(phase.retries));
+                properties.put(key + ".outcome", String.valueOf(phase.outcome));
+            }
+        }
+        return properties;
+    }
+
+    public void write(File file) throws IOException {
+        if(file.getParentFile() != null){
+            file.getParentFile().mkdirs();
+        }
+        try (Writer output = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            output.write(toJson());
+        }
+    }
+
+    /**
+     * Writes the timeline as JSON and sets it as properties of the project, prefixed with
+     * "jira.cloudformation.timeline." and the goal.
+     * @param file where to write the JSON, or null to not write it
+     */
+    public void export(File file, MavenProject project, Log log){
+        if(file != null){
+            try {
+                write(file);
+                log.info("Wrote " + goal + " timeline to: " + file.getAbsolutePath());
+            } catch (IOException e) {
+                log.warn("Failed to write " + goal + " timeline: " + e.getMessage());
+            }
+        }
+
+        if(project != null){
+            project.getProperties().putAll(toProperties("jira.cloudformation.timeline." + goal));
+        }
+    }
+
+    private static String timestamp(long millis){
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    private static String quote(String value){
+        if(value == null)return "null";
+
+        StringBuilder quoted = new StringBuilder("\"");
+        for(char c : value.toCharArray()){
+            switch(c){
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if(c < 0x20){
+                        quoted.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}